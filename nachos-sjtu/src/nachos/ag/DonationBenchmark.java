@@ -0,0 +1,160 @@
+package nachos.ag;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.threads.KThread;
+import nachos.threads.Lock;
+import nachos.threads.PriorityScheduler;
+import nachos.threads.Semaphore;
+import nachos.threads.ThreadedKernel;
+
+/**
+ * A benchmark for priority donation. Builds a chain of <tt>depth</tt>
+ * threads, each holding a lock the next one waits for, down to the main
+ * thread, which holds the first. Each thread in the chain also holds
+ * <tt>width</tt> more locks with a waiter on each. Then the priority of the
+ * last thread in the chain is changed <tt>ops</tt> times, to the highest
+ * priority and back down in turn, so that most changes are donated down the
+ * whole chain. The main thread's effective priority is checked after each
+ * one.
+ */
+public class DonationBenchmark extends AutoGrader {
+
+	@Override
+	void run() {
+		assertPriorityScheduler();
+
+		int depth = hasArgument("depth") ? getIntegerArgument("depth") : 64;
+		int width = hasArgument("width") ? getIntegerArgument("width") : 2;
+		int ops = hasArgument("ops") ? getIntegerArgument("ops") : 200000;
+
+		Lib.assertTrue(depth > 0, "invalid argument: depth");
+		Lib.assertTrue(width >= 0 && depth * (width + 1) < 240,
+				"invalid argument: width");
+		Lib.assertTrue(ops > 0, "invalid argument: ops");
+
+		chain = new Lock[depth + 1];
+		extra = new Lock[depth + 1][width];
+		finished = new Semaphore(0);
+		for (int i = 0; i <= depth; i++) {
+			chain[i] = new Lock();
+			for (int j = 0; j < width; j++)
+				extra[i][j] = new Lock();
+		}
+
+		boolean intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(PriorityScheduler.priorityMinimum);
+		Machine.interrupt().restore(intStatus);
+		chain[0].acquire();
+
+		// build the chain one thread at a time, each blocked before the next
+		KThread last = null;
+		int maxWaiter = PriorityScheduler.priorityDefault;
+		for (int i = 1; i <= depth; i++) {
+			last = start(chainLink(i), PriorityScheduler.priorityDefault);
+			for (int j = 0; j < width; j++) {
+				int p = PriorityScheduler.priorityMinimum
+						+ Lib.random(PriorityScheduler.priorityMaximum);
+				maxWaiter = Math.max(maxWaiter, p);
+				start(waiter(extra[i][j]), p);
+			}
+		}
+
+		long start = System.currentTimeMillis();
+
+		intStatus = Machine.interrupt().disable();
+		for (int i = 0; i < ops; i++) {
+			// every other change raises the whole chain to the top
+			int p = i % 2 == 0 ? PriorityScheduler.priorityMaximum
+					: PriorityScheduler.priorityMinimum
+							+ Lib.random(PriorityScheduler.priorityMaximum);
+			ThreadedKernel.scheduler.setPriority(last, p);
+			Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority() == Math
+					.max(p, maxWaiter), "wrong priority donated down the chain");
+		}
+		Machine.interrupt().restore(intStatus);
+
+		long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+
+		chain[0].release();
+		for (int i = 0; i < depth * (width + 1); i++)
+			finished.P();
+
+		System.out.println("\n" + ops + " priority changes donated through "
+				+ depth + " locks (" + width + " more held per thread) in "
+				+ elapsed + " ms (" + ((long) ops * 1000 / elapsed)
+				+ " per second)");
+
+		done();
+	}
+
+	private void assertPriorityScheduler() {
+		Lib.assertTrue(ThreadedKernel.scheduler instanceof PriorityScheduler,
+				"This benchmark needs PriorityScheduler.");
+	}
+
+	/**
+	 * Fork a thread and yield until it has blocked, then give it its
+	 * priority. It runs at the highest priority until then, since the main
+	 * thread may already have a high priority donated.
+	 */
+	private KThread start(Runnable body, int priority) {
+		int blocked = numBlocked + 1;
+		KThread thread = new KThread(body);
+		boolean intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(thread,
+				PriorityScheduler.priorityMaximum);
+		thread.fork();
+		Machine.interrupt().restore(intStatus);
+
+		while (numBlocked < blocked)
+			KThread.yield();
+
+		intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(thread, priority);
+		Machine.interrupt().restore(intStatus);
+		return thread;
+	}
+
+	/**
+	 * Take <tt>lock</tt> and note this thread as blocked, with no chance of
+	 * being switched out in between.
+	 */
+	private void blockOn(Lock lock) {
+		boolean intStatus = Machine.interrupt().disable();
+		numBlocked++;
+		lock.acquire();
+		Machine.interrupt().restore(intStatus);
+	}
+
+	private Runnable chainLink(final int i) {
+		return new Runnable() {
+			public void run() {
+				chain[i].acquire();
+				for (Lock lock : extra[i])
+					lock.acquire();
+				blockOn(chain[i - 1]);
+				chain[i - 1].release();
+				for (Lock lock : extra[i])
+					lock.release();
+				chain[i].release();
+				finished.V();
+			}
+		};
+	}
+
+	private Runnable waiter(final Lock lock) {
+		return new Runnable() {
+			public void run() {
+				blockOn(lock);
+				lock.release();
+				finished.V();
+			}
+		};
+	}
+
+	private Lock[] chain;
+	private Lock[][] extra;
+	private Semaphore finished;
+	private int numBlocked = 0;
+}
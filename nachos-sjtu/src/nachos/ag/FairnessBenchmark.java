@@ -0,0 +1,121 @@
+package nachos.ag;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.threads.KThread;
+import nachos.threads.LotteryScheduler;
+import nachos.threads.PriorityScheduler;
+import nachos.threads.Semaphore;
+import nachos.threads.ThreadedKernel;
+
+/**
+ * A fairness and throughput benchmark for proportional-share scheduling.
+ * Runs <tt>threads</tt> threads that yield in a loop, the <i>i</i>th with
+ * priority (tickets) <i>i</i>, for <tt>ticks</tt> ticks. Reports how often
+ * each thread ran against its share of the tickets, the mean error of the
+ * shares over every window of <tt>window</tt> consecutive choices, and the
+ * number of context switches per second. Run it once with each scheduler to
+ * compare them.
+ */
+public class FairnessBenchmark extends AutoGrader {
+
+	@Override
+	void run() {
+		int threads = hasArgument("threads") ? getIntegerArgument("threads") : 4;
+		int ticks = hasArgument("ticks") ? getIntegerArgument("ticks") : 2000000;
+		int window = hasArgument("window") ? getIntegerArgument("window") : 100;
+
+		Lib.assertTrue(threads > 0
+				&& threads <= PriorityScheduler.priorityMaximum,
+				"invalid argument: threads");
+		Lib.assertTrue(ticks > 0, "invalid argument: ticks");
+		Lib.assertTrue(window > 0, "invalid argument: window");
+
+		counts = new int[threads];
+		choices = new int[maxChoices];
+		finished = new Semaphore(0);
+
+		// the main thread must get the processor back as soon as it wakes
+		boolean intStatus = Machine.interrupt().disable();
+		if (ThreadedKernel.scheduler instanceof LotteryScheduler)
+			ThreadedKernel.scheduler.setPriority(1 << 20);
+		else if (ThreadedKernel.scheduler instanceof PriorityScheduler)
+			ThreadedKernel.scheduler.setPriority(PriorityScheduler.priorityMaximum);
+		for (int i = 0; i < threads; i++) {
+			final int id = i;
+			KThread thread = new KThread(new Runnable() {
+				public void run() {
+					spin(id);
+				}
+			}).setName("share" + (i + 1));
+			ThreadedKernel.scheduler.setPriority(thread, i + 1);
+			thread.fork();
+		}
+		Machine.interrupt().restore(intStatus);
+
+		long start = System.currentTimeMillis();
+		ThreadedKernel.alarm.waitUntil(ticks);
+		stop = true;
+		long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+		for (int i = 0; i < threads; i++)
+			finished.P();
+
+		long runs = 0;
+		for (int i = 0; i < threads; i++)
+			runs += counts[i];
+		int tickets = threads * (threads + 1) / 2;
+
+		System.out.println("\n" + ThreadedKernel.scheduler.getClass().getSimpleName()
+				+ ": " + runs + " switches in " + elapsed + " ms ("
+				+ (runs * 1000 / elapsed) + " per second)");
+		for (int i = 0; i < threads; i++)
+			System.out.println("  tickets " + (i + 1) + ": ran "
+					+ percent(counts[i], runs) + ", share "
+					+ percent(i + 1, tickets));
+
+		// mean error of the shares in each window of consecutive choices
+		int n = Math.min(numChoices, maxChoices);
+		double error = 0;
+		int windows = 0;
+		int[] inWindow = new int[threads];
+		for (int i = 0; i < n; i++) {
+			inWindow[choices[i]]++;
+			if (i >= window)
+				inWindow[choices[i - window]]--;
+			if (i >= window - 1) {
+				for (int t = 0; t < threads; t++)
+					error += Math.abs((double) inWindow[t] / window
+							- (double) (t + 1) / tickets);
+				windows++;
+			}
+		}
+		if (windows > 0)
+			System.out.println("  mean share error over " + window
+					+ "-choice windows: "
+					+ String.format("%.2f%%", 100 * error / windows / threads));
+
+		done();
+	}
+
+	private void spin(int id) {
+		while (!stop) {
+			counts[id]++;
+			if (numChoices < maxChoices)
+				choices[numChoices] = id;
+			numChoices++;
+			KThread.yield();
+		}
+		finished.V();
+	}
+
+	private static String percent(long part, long whole) {
+		return String.format("%.1f%%", whole == 0 ? 0.0 : 100.0 * part / whole);
+	}
+
+	private static final int maxChoices = 1000000;
+
+	private int[] counts, choices;
+	private int numChoices = 0;
+	private boolean stop = false;
+	private Semaphore finished;
+}
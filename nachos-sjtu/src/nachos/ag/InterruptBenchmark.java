@@ -0,0 +1,59 @@
+package nachos.ag;
+
+import nachos.machine.Lib;
+
+/**
+ * A benchmark for the interrupt controller. Keeps a fixed number of
+ * interrupts pending at random times, rescheduling one each time one is
+ * delivered, and reports how many interrupts were scheduled and delivered per
+ * second.
+ */
+public class InterruptBenchmark extends AutoGrader {
+
+	@Override
+	void run() {
+		events = hasArgument("events") ? getIntegerArgument("events") : 1000000;
+		int pending = hasArgument("pending") ? getIntegerArgument("pending")
+				: 1000;
+		maxDelay = hasArgument("maxDelay") ? getIntegerArgument("maxDelay")
+				: 5000;
+
+		Lib.assertTrue(events > 0, "invalid argument: events");
+		Lib.assertTrue(pending > 0, "invalid argument: pending");
+		Lib.assertTrue(maxDelay > 0, "invalid argument: maxDelay");
+
+		handler = new Runnable() {
+			public void run() {
+				delivered++;
+
+				if (scheduled < events)
+					schedule();
+			}
+		};
+
+		long start = System.currentTimeMillis();
+
+		for (int i = 0; i < pending && scheduled < events; i++)
+			schedule();
+
+		while (delivered < events)
+			privilege.interrupt.tick(true);
+
+		long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+
+		System.out.println("\n" + delivered + " interrupts in " + elapsed
+				+ " ms (" + (delivered * 1000 / elapsed) + " per second)");
+
+		done();
+	}
+
+	private void schedule() {
+		scheduled++;
+		privilege.interrupt.schedule(1 + Lib.random(maxDelay), "benchmark",
+				handler);
+	}
+
+	private long events, scheduled = 0, delivered = 0;
+	private int maxDelay;
+	private Runnable handler;
+}
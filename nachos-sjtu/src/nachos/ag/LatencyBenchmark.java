@@ -0,0 +1,127 @@
+package nachos.ag;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.threads.KThread;
+import nachos.threads.MLFQScheduler;
+import nachos.threads.Semaphore;
+import nachos.threads.ThreadedKernel;
+
+/**
+ * A benchmark for the response time of interactive threads under CPU-bound
+ * load. Runs <tt>background</tt> threads that never block next to
+ * <tt>interactive</tt> threads that, <tt>rounds</tt> times, sleep for
+ * <tt>think</tt> ticks and then compute for <tt>burst</tt> ticks, like a
+ * shell waiting for input. Reports how long each interactive thread waited
+ * for the processor after its sleep ended, how long its bursts took, and how
+ * evenly the background threads shared the rest. All threads have the default
+ * priority, so the scheduler must tell them apart by itself. Run it once with
+ * each scheduler to compare them.
+ */
+public class LatencyBenchmark extends AutoGrader {
+
+	@Override
+	void run() {
+		int background = hasArgument("background") ? getIntegerArgument("background") : 4;
+		int interactive = hasArgument("interactive") ? getIntegerArgument("interactive") : 2;
+		rounds = hasArgument("rounds") ? getIntegerArgument("rounds") : 50;
+		think = hasArgument("think") ? getIntegerArgument("think") : 2000;
+		burst = hasArgument("burst") ? getIntegerArgument("burst") : 200;
+
+		Lib.assertTrue(background >= 0 && background + interactive < 240,
+				"invalid argument: background");
+		Lib.assertTrue(interactive > 0, "invalid argument: interactive");
+		Lib.assertTrue(rounds > 0, "invalid argument: rounds");
+		Lib.assertTrue(think > 0, "invalid argument: think");
+		Lib.assertTrue(burst > 0, "invalid argument: burst");
+
+		progress = new long[background];
+		finished = new Semaphore(0);
+
+		for (int i = 0; i < background; i++) {
+			final int id = i;
+			new KThread(new Runnable() {
+				public void run() {
+					while (!stop) {
+						compute(10);
+						progress[id]++;
+					}
+					finished.V();
+				}
+			}).setName("background" + i).fork();
+		}
+		for (int i = 0; i < interactive; i++) {
+			new KThread(new Runnable() {
+				public void run() {
+					interact();
+					finished.V();
+				}
+			}).setName("interactive" + i).fork();
+		}
+
+		long start = Machine.timer().getTime();
+		for (int i = 0; i < interactive; i++)
+			finished.P();
+		long elapsed = Machine.timer().getTime() - start;
+		stop = true;
+		for (int i = 0; i < background; i++)
+			finished.P();
+
+		long wakeups = (long) interactive * rounds;
+		long minProgress = Long.MAX_VALUE, maxProgress = 0;
+		for (int i = 0; i < background; i++) {
+			minProgress = Math.min(minProgress, progress[i]);
+			maxProgress = Math.max(maxProgress, progress[i]);
+		}
+
+		System.out.println("\n" + ThreadedKernel.scheduler.getClass().getSimpleName()
+				+ ": " + wakeups + " wakeups in " + elapsed + " ticks");
+		System.out.println("  wakeup latency: mean " + (totalLatency / wakeups)
+				+ " ticks, max " + maxLatency + " ticks");
+		System.out.println("  burst of " + burst + " ticks: mean "
+				+ (totalResponse / wakeups) + " ticks, max " + maxResponse
+				+ " ticks");
+		if (background > 0)
+			System.out.println("  background progress: min " + minProgress
+					+ ", max " + maxProgress + " steps of 10 ticks");
+		if (ThreadedKernel.scheduler instanceof MLFQScheduler)
+			System.out.println("  "
+					+ ((MLFQScheduler) ThreadedKernel.scheduler).getStats());
+
+		done();
+	}
+
+	private void interact() {
+		for (int i = 0; i < rounds; i++) {
+			long due = Machine.timer().getTime() + think;
+			ThreadedKernel.alarm.waitUntil(think);
+			long woken = Machine.timer().getTime();
+			compute(burst);
+			long done = Machine.timer().getTime();
+
+			totalLatency += woken - due;
+			maxLatency = Math.max(maxLatency, woken - due);
+			totalResponse += done - due;
+			maxResponse = Math.max(maxResponse, done - due);
+		}
+	}
+
+	/**
+	 * Use the processor for about <i>ticks</i> ticks. Each time interrupts
+	 * are enabled the clock advances, and the timer may preempt this thread.
+	 */
+	private static void compute(long ticks) {
+		long end = Machine.timer().getTime() + ticks;
+		while (Machine.timer().getTime() < end) {
+			Machine.interrupt().disable();
+			Machine.interrupt().enable();
+		}
+	}
+
+	private int rounds, think, burst;
+	private long[] progress;
+	private long totalLatency = 0, maxLatency = 0;
+	private long totalResponse = 0, maxResponse = 0;
+	private boolean stop = false;
+	private Semaphore finished;
+}
@@ -0,0 +1,130 @@
+package nachos.ag;
+
+import java.util.HashMap;
+
+import nachos.machine.Lib;
+import nachos.machine.TranslationEntry;
+import nachos.vm.PageMap;
+import nachos.vm.VMPage;
+
+/**
+ * A benchmark for the inverted page table. Fills a table with the pages of a
+ * number of processes, then looks up random pages and replaces random pages
+ * the way the TLB miss handler and the pager do. The same sequence is run
+ * against a <tt>HashMap</tt> keyed by the old string-hashed page, a
+ * <tt>HashMap</tt> keyed by <tt>VMPage</tt>, and a <tt>PageMap</tt>.
+ */
+public class PageMapBenchmark extends AutoGrader {
+
+	@Override
+	void run() {
+		int ops = hasArgument("ops") ? getIntegerArgument("ops") : 2000000;
+		int processes = hasArgument("processes") ? getIntegerArgument("processes")
+				: 64;
+		int pages = hasArgument("pages") ? getIntegerArgument("pages") : 64;
+
+		Lib.assertTrue(ops > 0, "invalid argument: ops");
+		Lib.assertTrue(processes > 0, "invalid argument: processes");
+		Lib.assertTrue(pages > 0, "invalid argument: pages");
+
+		// one sequence of (pid, vpn, replace) for all three maps
+		int[] pids = new int[ops];
+		int[] vpns = new int[ops];
+		boolean[] replace = new boolean[ops];
+		for (int i = 0; i < ops; i++) {
+			pids[i] = 1 + Lib.random(processes);
+			vpns[i] = Lib.random(pages);
+			replace[i] = Lib.random(8) == 0;
+		}
+
+		TranslationEntry entry = new TranslationEntry();
+
+		// warm up each once, then time
+		for (int round = 0; round < 2; round++) {
+			boolean report = round == 1;
+
+			HashMap<StringPage, TranslationEntry> stringMap = new HashMap<StringPage, TranslationEntry>();
+			for (int pid = 1; pid <= processes; pid++)
+				for (int vpn = 0; vpn < pages; vpn++)
+					stringMap.put(new StringPage(pid, vpn), entry);
+			long start = System.nanoTime();
+			for (int i = 0; i < ops; i++) {
+				StringPage page = new StringPage(pids[i], vpns[i]);
+				if (replace[i]) {
+					stringMap.remove(page);
+					stringMap.put(page, entry);
+				} else
+					Lib.assertTrue(stringMap.get(page) == entry);
+			}
+			if (report)
+				print("HashMap<String-hashed page>", ops, System.nanoTime()
+						- start);
+
+			HashMap<VMPage, TranslationEntry> pageMap = new HashMap<VMPage, TranslationEntry>();
+			for (int pid = 1; pid <= processes; pid++)
+				for (int vpn = 0; vpn < pages; vpn++)
+					pageMap.put(new VMPage(pid, vpn), entry);
+			start = System.nanoTime();
+			for (int i = 0; i < ops; i++) {
+				VMPage page = new VMPage(pids[i], vpns[i]);
+				if (replace[i]) {
+					pageMap.remove(page);
+					pageMap.put(page, entry);
+				} else
+					Lib.assertTrue(pageMap.get(page) == entry);
+			}
+			if (report)
+				print("HashMap<VMPage>", ops, System.nanoTime() - start);
+
+			PageMap<TranslationEntry> longMap = new PageMap<TranslationEntry>();
+			for (int pid = 1; pid <= processes; pid++)
+				for (int vpn = 0; vpn < pages; vpn++)
+					longMap.put(PageMap.key(pid, vpn), entry);
+			start = System.nanoTime();
+			for (int i = 0; i < ops; i++) {
+				long key = PageMap.key(pids[i], vpns[i]);
+				if (replace[i]) {
+					longMap.remove(key);
+					longMap.put(key, entry);
+				} else
+					Lib.assertTrue(longMap.get(key) == entry);
+			}
+			if (report)
+				print("PageMap", ops, System.nanoTime() - start);
+		}
+
+		done();
+	}
+
+	private void print(String name, int ops, long elapsed) {
+		System.out.println(name + ": " + ops + " operations in "
+				+ (elapsed / 1000000) + " ms (" + (elapsed / ops)
+				+ " ns per operation)");
+	}
+
+	/**
+	 * A page hashed the way <tt>VMPage</tt> used to be, through a string.
+	 */
+	private static class StringPage {
+		StringPage(int pid, int vpn) {
+			this.pid = pid;
+			this.vpn = vpn;
+		}
+
+		public String toString() {
+			return pid + "," + vpn;
+		}
+
+		public boolean equals(Object o) {
+			if (o == null)
+				return false;
+			return toString().equals(o.toString());
+		}
+
+		public int hashCode() {
+			return toString().hashCode();
+		}
+
+		int pid, vpn;
+	}
+}
@@ -0,0 +1,98 @@
+package nachos.ag;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.threads.KThread;
+import nachos.threads.Lock;
+import nachos.threads.PriorityScheduler;
+import nachos.threads.Semaphore;
+import nachos.threads.ThreadedKernel;
+
+/**
+ * A benchmark for the scheduler's thread queues. Pushes thousands of threads
+ * of random priorities through a few contended locks, guarded by a counting
+ * semaphore, and reports how many lock handoffs were made per second. At most
+ * <tt>batch</tt> threads are alive at once, since the machine limits the
+ * number of running threads.
+ */
+public class SchedulerBenchmark extends AutoGrader {
+
+	@Override
+	void run() {
+		int threads = hasArgument("threads") ? getIntegerArgument("threads")
+				: 5000;
+		int batch = hasArgument("batch") ? getIntegerArgument("batch") : 200;
+		rounds = hasArgument("rounds") ? getIntegerArgument("rounds") : 20;
+		int numLocks = hasArgument("locks") ? getIntegerArgument("locks") : 4;
+
+		Lib.assertTrue(threads > 0, "invalid argument: threads");
+		Lib.assertTrue(batch > 0 && batch < 240, "invalid argument: batch");
+		Lib.assertTrue(rounds > 0, "invalid argument: rounds");
+		Lib.assertTrue(numLocks > 0, "invalid argument: locks");
+
+		locks = new Lock[numLocks];
+		for (int i = 0; i < numLocks; i++)
+			locks[i] = new Lock();
+		slots = new Semaphore(numLocks);
+		finished = new Semaphore(0);
+
+		Runnable body = new Runnable() {
+			public void run() {
+				contend();
+			}
+		};
+
+		long start = System.currentTimeMillis();
+
+		for (int forked = 0; forked < threads;) {
+			int n = Math.min(batch, threads - forked);
+			boolean intStatus = Machine.interrupt().disable();
+			for (int i = 0; i < n; i++) {
+				KThread thread = new KThread(body).setName("bench" + (forked + i));
+				ThreadedKernel.scheduler.setPriority(thread, randomPriority());
+				thread.fork();
+			}
+			Machine.interrupt().restore(intStatus);
+			for (int i = 0; i < n; i++)
+				finished.P();
+			forked += n;
+		}
+
+		long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+		long handoffs = (long) threads * rounds;
+
+		System.out.println("\n" + ThreadedKernel.scheduler.getClass().getSimpleName()
+				+ ": " + handoffs + " lock handoffs by " + threads
+				+ " threads in " + elapsed + " ms (" + (handoffs * 1000 / elapsed)
+				+ " per second)");
+
+		done();
+	}
+
+	private void contend() {
+		for (int i = 0; i < rounds; i++) {
+			slots.P();
+			Lock lock = locks[Lib.random(locks.length)];
+			lock.acquire();
+			KThread.yield();
+			if (Lib.random(4) == 0) {
+				boolean intStatus = Machine.interrupt().disable();
+				ThreadedKernel.scheduler.setPriority(randomPriority());
+				Machine.interrupt().restore(intStatus);
+			}
+			lock.release();
+			slots.V();
+		}
+		finished.V();
+	}
+
+	private static int randomPriority() {
+		return PriorityScheduler.priorityMinimum + 1
+				+ Lib.random(PriorityScheduler.priorityMaximum
+						- PriorityScheduler.priorityMinimum);
+	}
+
+	private int rounds;
+	private Lock[] locks;
+	private Semaphore slots, finished;
+}
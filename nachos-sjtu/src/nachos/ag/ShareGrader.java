@@ -0,0 +1,96 @@
+package nachos.ag;
+
+import nachos.machine.Machine;
+import nachos.threads.KThread;
+import nachos.threads.Lock;
+import nachos.threads.LotteryScheduler;
+import nachos.threads.Semaphore;
+import nachos.threads.ThreadedKernel;
+
+/**
+ * A grader for proportional share among threads that contend for a lock.
+ * Runs <tt>threads</tt> threads, the <i>i</i>th with <i>i</i> tickets, that
+ * take turns in one critical section for <tt>ticks</tt> ticks. Each yields
+ * inside the critical section and again outside it, so the lock is always
+ * contended and tickets are always being transferred. Checks that each
+ * thread got its share of the tickets, give or take <tt>tolerance</tt>
+ * percentage points, of the turns.
+ */
+public class ShareGrader extends BasicTestGrader {
+
+	@Override
+	void run() {
+		assertTrue(ThreadedKernel.scheduler instanceof LotteryScheduler,
+				"This grader needs a lottery or stride scheduler.");
+
+		int threads = hasArgument("threads") ? getIntegerArgument("threads") : 4;
+		int ticks = hasArgument("ticks") ? getIntegerArgument("ticks") : 1000000;
+		int tolerance = hasArgument("tolerance") ? getIntegerArgument("tolerance") : 2;
+		work = hasArgument("work") ? getIntegerArgument("work") : 8;
+
+		assertTrue(threads > 1 && threads < 100, "invalid argument: threads");
+		assertTrue(ticks > 0, "invalid argument: ticks");
+		assertTrue(tolerance >= 0, "invalid argument: tolerance");
+
+		counts = new long[threads];
+		lock = new Lock();
+		finished = new Semaphore(0);
+
+		// the main thread must get the processor back as soon as it wakes
+		boolean intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(1 << 20);
+		Machine.interrupt().restore(intStatus);
+
+		for (int i = 0; i < threads; i++) {
+			final int id = i;
+			forkNewThread(new Runnable() {
+				public void run() {
+					contend(id);
+				}
+			}, i + 1).thread.setName("share" + (i + 1));
+		}
+
+		ThreadedKernel.alarm.waitUntil(ticks);
+		stop = true;
+		for (int i = 0; i < threads; i++)
+			finished.P();
+
+		long turns = 0;
+		for (int i = 0; i < threads; i++)
+			turns += counts[i];
+		int tickets = threads * (threads + 1) / 2;
+		assertTrue(turns > 0, "no thread entered the critical section");
+
+		System.out.println("\n" + ThreadedKernel.scheduler.getClass().getSimpleName()
+				+ ": " + turns + " turns at the lock");
+		for (int i = 0; i < threads; i++) {
+			double share = 100.0 * counts[i] / turns;
+			double expected = 100.0 * (i + 1) / tickets;
+			System.out.println("  tickets " + (i + 1) + ": "
+					+ String.format("%.1f%%, expected %.1f%%", share, expected));
+			assertTrue(Math.abs(share - expected) <= tolerance, "thread with "
+					+ (i + 1) + " tickets got " + String.format("%.1f%%", share)
+					+ " of the turns, expected " + String.format("%.1f%%", expected));
+		}
+
+		done();
+	}
+
+	private void contend(int id) {
+		while (!stop) {
+			lock.acquire();
+			counts[id]++;
+			KThread.yield();
+			lock.release();
+			for (int i = 0; i < work; i++)
+				KThread.yield();
+		}
+		finished.V();
+	}
+
+	private int work;
+	private long[] counts;
+	private Lock lock;
+	private boolean stop = false;
+	private Semaphore finished;
+}
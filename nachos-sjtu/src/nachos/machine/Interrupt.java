@@ -2,8 +2,8 @@
 
 package nachos.machine;
 
-import java.util.Iterator;
-import java.util.TreeSet;
+import java.util.Arrays;
+import java.util.Comparator;
 
 import nachos.security.Privilege;
 
@@ -52,7 +52,12 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+
+		pendingTime = new long[initialPendingCapacity];
+		pendingId = new long[initialPendingCapacity];
+		pendingType = new String[initialPendingCapacity];
+		pendingHandler = new Runnable[initialPendingCapacity];
+		numPending = 0;
 	}
 
 	/**
@@ -125,23 +130,109 @@ public final class Interrupt {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
 		Lib.debug(dbgInt, "Scheduling the " + type
 				+ " interrupt handler at time = " + time);
 
-		pending.add(toOccur);
+		if (numPending == pendingTime.length) {
+			int capacity = pendingTime.length * 2;
+			pendingTime = Arrays.copyOf(pendingTime, capacity);
+			pendingId = Arrays.copyOf(pendingId, capacity);
+			pendingType = Arrays.copyOf(pendingType, capacity);
+			pendingHandler = Arrays.copyOf(pendingHandler, capacity);
+		}
+
+		// sift the new interrupt up from the bottom of the heap
+		long id = numPendingInterruptsCreated++;
+		int i = numPending++;
+
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!before(time, id, parent))
+				break;
+
+			move(parent, i);
+			i = parent;
+		}
+
+		set(i, time, id, type, handler);
+	}
+
+	/**
+	 * Remove the earliest pending interrupt from the top of the heap.
+	 */
+	private void removeFirst() {
+		int last = --numPending;
+
+		long time = pendingTime[last];
+		long id = pendingId[last];
+		String type = pendingType[last];
+		Runnable handler = pendingHandler[last];
+
+		// don't hold on to handlers that will never run again
+		pendingType[last] = null;
+		pendingHandler[last] = null;
+
+		if (last == 0)
+			return;
+
+		// sift the last interrupt down from the top of the heap
+		int i = 0;
+
+		while (true) {
+			int child = i * 2 + 1;
+			if (child >= last)
+				break;
+
+			if (child + 1 < last
+					&& before(pendingTime[child + 1], pendingId[child + 1],
+							child))
+				child++;
+
+			if (!before(pendingTime[child], pendingId[child], time, id))
+				break;
+
+			move(child, i);
+			i = child;
+		}
+
+		set(i, time, id, type, handler);
+	}
+
+	private boolean before(long time, long id, int i) {
+		return before(time, id, pendingTime[i], pendingId[i]);
+	}
+
+	private boolean before(long time, long id, long otherTime, long otherId) {
+		// interrupts due at the same time occur in the order scheduled
+		return time < otherTime || (time == otherTime && id < otherId);
+	}
+
+	private void move(int from, int to) {
+		set(to, pendingTime[from], pendingId[from], pendingType[from],
+				pendingHandler[from]);
+	}
+
+	private void set(int i, long time, long id, String type, Runnable handler) {
+		pendingTime[i] = time;
+		pendingId[i] = id;
+		pendingType[i] = type;
+		pendingHandler[i] = handler;
 	}
 
 	private void tick(boolean inKernelMode) {
+		tick(inKernelMode, 1);
+	}
+
+	private void tick(boolean inKernelMode, int numTicks) {
 		Stats stats = privilege.stats;
 
 		if (inKernelMode) {
-			stats.kernelTicks += Stats.KernelTick;
-			stats.totalTicks += Stats.KernelTick;
+			stats.kernelTicks += Stats.KernelTick * numTicks;
+			stats.totalTicks += Stats.KernelTick * numTicks;
 		} else {
-			stats.userTicks += Stats.UserTick;
-			stats.totalTicks += Stats.UserTick;
+			stats.userTicks += Stats.UserTick * numTicks;
+			stats.totalTicks += Stats.UserTick * numTicks;
 		}
 
 		if (Lib.test(dbgInt))
@@ -152,6 +243,13 @@ public final class Interrupt {
 		enabled = true;
 	}
 
+	private long nextInterruptTime() {
+		if (numPending == 0)
+			return Long.MAX_VALUE;
+
+		return pendingTime[0];
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
@@ -160,27 +258,25 @@ public final class Interrupt {
 		if (Lib.test(dbgInt))
 			print();
 
-		if (pending.isEmpty())
+		if (numPending == 0)
 			return;
 
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (pendingTime[0] > time)
 			return;
 
 		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
-
-			Lib.assertTrue(next.time <= time);
+		while (numPending > 0 && pendingTime[0] <= time) {
+			String type = pendingType[0];
+			Runnable handler = pendingHandler[0];
+			removeFirst();
 
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			Lib.debug(dbgInt, "  " + type);
 
-			next.handler.run();
+			handler.run();
 		}
 
 		Lib.debug(dbgInt, "  (end of list)");
@@ -191,44 +287,25 @@ public final class Interrupt {
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator<PendingInterrupt> i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
-			System.out.println("  " + toOccur.type + ", scheduled at "
-					+ toOccur.time);
-		}
-
-		System.out.println("  (end of list)");
-	}
+		// the heap is only partially ordered, so sort a copy
+		Integer[] order = new Integer[numPending];
+		for (int i = 0; i < numPending; i++)
+			order[i] = i;
 
-	private class PendingInterrupt implements Comparable<PendingInterrupt> {
-		PendingInterrupt(long time, String type, Runnable handler) {
-			this.time = time;
-			this.type = type;
-			this.handler = handler;
-			this.id = numPendingInterruptsCreated++;
-		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				if (a.equals(b))
+					return 0;
 
-		public int compareTo(PendingInterrupt o) {
-			PendingInterrupt toOccur = o;
-
-			// can't return 0 for unequal objects, so check all fields
-			if (time < toOccur.time)
-				return -1;
-			else if (time > toOccur.time)
-				return 1;
-			else if (id < toOccur.id)
-				return -1;
-			else if (id > toOccur.id)
-				return 1;
-			else
-				return 0;
-		}
+				return before(pendingTime[a], pendingId[a], b) ? -1 : 1;
+			}
+		});
 
-		long time;
-		String type;
-		Runnable handler;
+		for (int i : order)
+			System.out.println("  " + pendingType[i] + ", scheduled at "
+					+ pendingTime[i]);
 
-		private long id;
+		System.out.println("  (end of list)");
 	}
 
 	private long numPendingInterruptsCreated = 0;
@@ -236,7 +313,19 @@ public final class Interrupt {
 	private Privilege privilege;
 
 	private boolean enabled;
-	private TreeSet<PendingInterrupt> pending;
+
+	/**
+	 * The pending interrupts, kept as a binary min-heap ordered by time and
+	 * then by the order in which they were scheduled. Each interrupt is stored
+	 * across the four arrays at the same index, so scheduling one allocates
+	 * nothing unless the heap has to grow.
+	 */
+	private long[] pendingTime, pendingId;
+	private String[] pendingType;
+	private Runnable[] pendingHandler;
+	private int numPending;
+
+	private static final int initialPendingCapacity = 16;
 
 	private static final char dbgInt = 'i';
 
@@ -248,5 +337,15 @@ public final class Interrupt {
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public void tick(boolean inKernelMode, int numTicks) {
+			Lib.assertTrue(numTicks > 0);
+
+			Interrupt.this.tick(inKernelMode, numTicks);
+		}
+
+		public long nextInterruptTime() {
+			return Interrupt.this.nextInterruptTime();
+		}
 	}
 }
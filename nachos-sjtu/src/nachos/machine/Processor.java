@@ -2,6 +2,9 @@
 
 package nachos.machine;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 import nachos.security.*;
 
 /**
@@ -46,14 +49,38 @@ public final class Processor {
 			registers[i] = 0;
 
 		mainMemory = new byte[pageSize * numPhysPages];
+		decodeCache = new DecodedInstruction[numPhysPages][];
+
+		String engine = Config.getString("Processor.engine", "interpreter");
+		if (engine.equals("block")) {
+			usingBlockEngine = true;
+			blockCache = new Block[numPhysPages][];
+		} else {
+			Lib.assertTrue(engine.equals("interpreter"),
+					"unknown Processor.engine: " + engine);
+			usingBlockEngine = false;
+			blockCache = null;
+		}
 
 		if (usingTLB) {
+			tlbSize = Config.getInteger("Processor.tlbSize", 4);
+			tlbAssociativity = Config.getInteger("Processor.tlbAssociativity",
+					tlbSize);
+			Lib.assertTrue(tlbSize > 0 && tlbAssociativity > 0
+					&& tlbSize % tlbAssociativity == 0,
+					"bad Processor.tlbSize or Processor.tlbAssociativity");
+
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
 				translations[i] = new TranslationEntry();
+
+			tlbIndex = new int[Integer.highestOneBit(tlbSize * 2 - 1) * 2];
+			tlbIndexValid = false;
 		} else {
 			translations = null;
 		}
+
+		tracing = Lib.test(dbgProcessor);
 	}
 
 	/**
@@ -93,15 +120,173 @@ public final class Processor {
 
 		Instruction inst = new Instruction();
 
+		// tracing output is produced per instruction, so it needs the
+		// interpreter
+		if (usingBlockEngine && !Lib.test(dbgProcessor)
+				&& !Lib.test(dbgDisassemble) && !Lib.test(dbgFullDisassemble)
+				&& !Lib.test(dbgInterrupt))
+			runBlocks(inst);
+
 		while (true) {
+			// nothing but an exception or an interrupt can change what is
+			// pending, so run straight up to the next interrupt and then
+			// charge for all of those instructions at once
+			int batchSize = Lib.test(dbgInterrupt) ? 1 : getBatchSize();
+			int numTicks = 0;
+
 			try {
-				inst.run();
+				do {
+					inst.run();
+					numTicks++;
+				} while (numTicks < batchSize);
 			} catch (MipsException e) {
+				// account for the instructions that completed before the fault
+				if (numTicks > 0)
+					privilege.interrupt.tick(false, numTicks);
+
 				e.handle();
+				numTicks = 1;
 			}
 
-			privilege.interrupt.tick(false);
+			privilege.interrupt.tick(false, numTicks);
+		}
+	}
+
+	/**
+	 * Execute instructions a basic block at a time. A block is a run of
+	 * straight-line instructions within one physical page, ending with a
+	 * syscall or with the delay slot of a branch or jump. Each block is
+	 * compiled once into a sequence of <tt>CompiledInstruction</tt>s, and the
+	 * simulated time of consecutive blocks is charged with a single tick when
+	 * the next interrupt is due.
+	 * 
+	 * <p>
+	 * Whenever a block could not run to completion without passing the time
+	 * at which that interrupt is due, or when execution was resumed in a delay
+	 * slot, a single instruction is executed by the interpreter instead, so
+	 * the machine behaves exactly as if every instruction had been
+	 * interpreted. Never returns.
+	 * 
+	 * @param inst
+	 *            the interpreter to fall back on.
+	 */
+	private void runBlocks(Instruction inst) {
+		while (true) {
+			int batchSize = getBatchSize();
+			int numTicks = 0;
+
+			try {
+				do {
+					Block block = findBlock(inst);
+
+					if (block == null
+							|| block.code.length > batchSize - numTicks) {
+						inst.run();
+						numTicks++;
+						continue;
+					}
+
+					blocksInvalidated = false;
+
+					for (CompiledInstruction code : block.code) {
+						code.run();
+						numTicks++;
+
+						// a store hit a page we compiled; stop using stale code
+						if (blocksInvalidated)
+							break;
+					}
+				} while (numTicks < batchSize);
+			} catch (MipsException e) {
+				// account for the instructions that completed before the fault
+				if (numTicks > 0)
+					privilege.interrupt.tick(false, numTicks);
+
+				e.handle();
+				numTicks = 1;
+			}
+
+			privilege.interrupt.tick(false, numTicks);
+		}
+	}
+
+	/**
+	 * Return the number of user instructions that can be executed before the
+	 * next pending interrupt is due, counting the instruction whose tick
+	 * reaches the interrupt time. Ticking once for all of them is the same as
+	 * ticking after each one.
+	 * 
+	 * @return the number of instructions that can be charged with one tick.
+	 */
+	private int getBatchSize() {
+		long time = privilege.interrupt.nextInterruptTime();
+		long ticks = (time - privilege.stats.totalTicks + Stats.UserTick - 1)
+				/ Stats.UserTick;
+
+		if (time == Long.MAX_VALUE || ticks > maxBatchSize)
+			return maxBatchSize;
+
+		return (int) ticks;
+	}
+
+	/**
+	 * Return the compiled block starting at the current PC, compiling it if
+	 * necessary.
+	 * 
+	 * @param inst
+	 *            the interpreter used by the block for instructions it does
+	 *            not specialize.
+	 * @return the block starting at the current PC, or <tt>null</tt> if the
+	 *         processor is executing a delay slot.
+	 * @exception MipsException
+	 *                if the PC could not be translated.
+	 */
+	private Block findBlock(Instruction inst) throws MipsException {
+		int pc = registers[regPC];
+		if (registers[regNextPC] != pc + 4)
+			return null;
+
+		int paddr = translate(pc, 4, false, true);
+
+		Block[] blockPage = blockCache[paddr / pageSize];
+		if (blockPage == null) {
+			blockPage = new Block[pageSize / 4];
+			blockCache[paddr / pageSize] = blockPage;
+		}
+
+		int index = (paddr % pageSize) / 4;
+		Block block = blockPage[index];
+		if (block == null) {
+			block = new Block(paddr, inst);
+			blockPage[index] = block;
+		}
+
+		return block;
+	}
+
+	/**
+	 * Return the decoded instruction at the specified physical address,
+	 * decoding it and adding it to the decode cache if necessary.
+	 * 
+	 * @param paddr
+	 *            the physical address of the instruction.
+	 * @return the decoded instruction.
+	 */
+	private DecodedInstruction getDecoded(int paddr) {
+		DecodedInstruction[] decodedPage = decodeCache[paddr / pageSize];
+		if (decodedPage == null) {
+			decodedPage = new DecodedInstruction[pageSize / 4];
+			decodeCache[paddr / pageSize] = decodedPage;
+		}
+
+		int index = (paddr % pageSize) / 4;
+		DecodedInstruction decoded = decodedPage[index];
+		if (decoded == null) {
+			decoded = new DecodedInstruction(Lib.bytesToInt(mainMemory, paddr));
+			decodedPage[index] = decoded;
 		}
+
+		return decoded;
 	}
 
 	/**
@@ -178,6 +363,8 @@ public final class Processor {
 		Lib.assertTrue(!usingTLB);
 
 		this.translations = pageTable;
+
+		invalidateLastTranslations();
 	}
 
 	/**
@@ -191,6 +378,63 @@ public final class Processor {
 		return tlbSize;
 	}
 
+	/**
+	 * Return the number of entries in each set of this processor's TLB. The
+	 * TLB is fully associative if this is the same as <tt>getTLBSize()</tt>.
+	 * 
+	 * @return the associativity of this processor's TLB.
+	 */
+	public int getTLBAssociativity() {
+		Lib.assertTrue(usingTLB);
+
+		return tlbAssociativity;
+	}
+
+	/**
+	 * Return the set of TLB entries that can hold a translation for the
+	 * specified virtual page. Set <i>s</i> consists of entries
+	 * <tt><i>s</i>*getTLBAssociativity()</tt> through
+	 * <tt>(<i>s</i>+1)*getTLBAssociativity()-1</tt>.
+	 * 
+	 * @param vpn
+	 *            the virtual page number.
+	 * @return the TLB set for the page.
+	 */
+	public int getTLBSet(int vpn) {
+		Lib.assertTrue(usingTLB);
+
+		return (int) ((vpn & 0xFFFFFFFFL) % (tlbSize / tlbAssociativity));
+	}
+
+	/**
+	 * Set the address space identifier of the running process. A TLB entry
+	 * only translates addresses while its <tt>asid</tt> matches, so the TLB
+	 * does not need to be flushed on a context switch.
+	 * 
+	 * @param asid
+	 *            the address space identifier.
+	 */
+	public void setASID(int asid) {
+		Lib.assertTrue(usingTLB);
+
+		if (asid != this.asid) {
+			this.asid = asid;
+			invalidateLastTranslations();
+		}
+	}
+
+	/**
+	 * Return the address space identifier of the running process.
+	 * 
+	 * @return the address space identifier set by the last call to
+	 *         <tt>setASID()</tt>.
+	 */
+	public int getASID() {
+		Lib.assertTrue(usingTLB);
+
+		return asid;
+	}
+
 	/**
 	 * Returns the specified TLB entry.
 	 * 
@@ -209,8 +453,9 @@ public final class Processor {
 	 * Fill the specified TLB entry.
 	 * 
 	 * <p>
-	 * The TLB is fully associative, so the location of an entry within the TLB
-	 * does not affect anything.
+	 * A valid entry must be placed in the set returned by
+	 * <tt>getTLBSet()</tt> for its virtual page. Within a set, the location of
+	 * an entry does not affect anything.
 	 * 
 	 * @param number
 	 *            the index into the TLB.
@@ -220,8 +465,14 @@ public final class Processor {
 	public void writeTLBEntry(int number, TranslationEntry entry) {
 		Lib.assertTrue(usingTLB);
 		Lib.assertTrue(number >= 0 && number < tlbSize);
+		Lib.assertTrue(!entry.valid
+				|| number / tlbAssociativity == getTLBSet(entry.vpn),
+				"TLB entry written to the wrong set");
 
 		translations[number] = new TranslationEntry(entry);
+
+		tlbIndexValid = false;
+		invalidateLastTranslations();
 	}
 
 	/**
@@ -244,6 +495,27 @@ public final class Processor {
 		return mainMemory;
 	}
 
+	/**
+	 * Discard any pre-decoded instructions cached for the specified page of
+	 * physical memory. Stores executed by user programs keep the cache coherent
+	 * on their own, but the kernel must call this whenever it changes the
+	 * contents of a physical page directly (e.g. when loading a page from an
+	 * executable or from swap, or when reusing a frame for another page).
+	 * 
+	 * @param ppn
+	 *            the physical page whose contents changed.
+	 */
+	public void invalidateDecodeCache(int ppn) {
+		Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+		decodeCache[ppn] = null;
+
+		if (usingBlockEngine && blockCache[ppn] != null) {
+			blockCache[ppn] = null;
+			blocksInvalidated = true;
+		}
+	}
+
 	/**
 	 * Concatenate a page number and an offset into an address.
 	 * 
@@ -306,7 +578,30 @@ public final class Processor {
 	 */
 	private int translate(int vaddr, int size, boolean writing)
 			throws MipsException {
-		if (Lib.test(dbgProcessor))
+		return translate(vaddr, size, writing, false);
+	}
+
+	/**
+	 * Translate a virtual address into a physical address. Instruction fetches
+	 * and data references each remember the last TLB entry they used, so
+	 * that successive references to the same page skip the TLB lookup.
+	 * 
+	 * @param vaddr
+	 *            the virtual address to translate.
+	 * @param size
+	 *            the size of the memory reference (must be 1, 2, or 4).
+	 * @param writing
+	 *            <tt>true</tt> if the memory reference is a write.
+	 * @param fetching
+	 *            <tt>true</tt> if the memory reference is an instruction
+	 *            fetch.
+	 * @return the physical address.
+	 * @exception MipsException
+	 *                if a translation error occurred.
+	 */
+	private int translate(int vaddr, int size, boolean writing,
+			boolean fetching) throws MipsException {
+		if (tracing)
 			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 					+ (writing ? ", write" : ", read..."));
 
@@ -333,19 +628,26 @@ public final class Processor {
 
 			entry = translations[vpn];
 		}
-		// else, look through all TLB entries for matching vpn
-		else {
-			for (int i = 0; i < tlbSize; i++) {
-				if (translations[i].valid && translations[i].vpn == vpn) {
-					entry = translations[i];
-					break;
-				}
-			}
+		// else, try the last entry used, then look up the vpn in the TLB
+		else if (fetching && vpn == lastFetchVpn) {
+			entry = lastFetchEntry;
+		} else if (!fetching && vpn == lastDataVpn) {
+			entry = lastDataEntry;
+		} else {
+			entry = lookupTLB(vpn);
 			if (entry == null) {
 				privilege.stats.numTLBMisses++;
 				Lib.debug(dbgProcessor, "\t\tTLB miss");
 				throw new MipsException(exceptionTLBMiss, vaddr);
 			}
+
+			if (fetching) {
+				lastFetchVpn = vpn;
+				lastFetchEntry = entry;
+			} else {
+				lastDataVpn = vpn;
+				lastDataEntry = entry;
+			}
 		}
 
 		// check if trying to write a read-only page
@@ -368,11 +670,81 @@ public final class Processor {
 
 		int paddr = (ppn * pageSize) + offset;
 
-		if (Lib.test(dbgProcessor))
+		if (tracing)
 			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
 		return paddr;
 	}
 
+	/**
+	 * Find the valid TLB entry for the specified virtual page in the current
+	 * address space. If more than one entry matches, the one in the lowest
+	 * numbered slot is used.
+	 * 
+	 * @param vpn
+	 *            the virtual page number.
+	 * @return the matching TLB entry, or <tt>null</tt> if there is none.
+	 */
+	private TranslationEntry lookupTLB(int vpn) {
+		if (!tlbIndexValid)
+			indexTLB();
+
+		int mask = tlbIndex.length - 1;
+
+		for (int i = tlbHash(vpn, asid) & mask;; i = (i + 1) & mask) {
+			int slot = tlbIndex[i];
+			if (slot == -1)
+				return null;
+
+			TranslationEntry entry = translations[slot];
+			if (entry.vpn == vpn && entry.asid == asid)
+				return entry;
+		}
+	}
+
+	/**
+	 * Rebuild the open-addressed hash from (vpn, asid) to TLB slot.
+	 */
+	private void indexTLB() {
+		int mask = tlbIndex.length - 1;
+
+		Arrays.fill(tlbIndex, -1);
+
+		for (int slot = 0; slot < tlbSize; slot++) {
+			TranslationEntry entry = translations[slot];
+			if (!entry.valid)
+				continue;
+
+			int i = tlbHash(entry.vpn, entry.asid) & mask;
+
+			while (tlbIndex[i] != -1) {
+				// an earlier slot already translates this page
+				TranslationEntry other = translations[tlbIndex[i]];
+				if (other.vpn == entry.vpn && other.asid == entry.asid)
+					break;
+
+				i = (i + 1) & mask;
+			}
+
+			if (tlbIndex[i] == -1)
+				tlbIndex[i] = slot;
+		}
+
+		tlbIndexValid = true;
+	}
+
+	private static int tlbHash(int vpn, int asid) {
+		return vpn ^ (asid * 0x9E3779B1);
+	}
+
+	/**
+	 * Forget the last translations used by instruction fetches and data
+	 * references. Called whenever the translations they came from change.
+	 */
+	private void invalidateLastTranslations() {
+		lastFetchVpn = lastDataVpn = -1;
+		lastFetchEntry = lastDataEntry = null;
+	}
+
 	/**
 	 * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
 	 * and return the result.
@@ -423,7 +795,20 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		int paddr = translate(vaddr, size, true);
+		Lib.bytesFromInt(mainMemory, paddr, size, value);
+
+		// drop the decoded copy of the word we just overwrote, if any
+		int ppn = paddr / pageSize;
+		DecodedInstruction[] decodedPage = decodeCache[ppn];
+		if (decodedPage != null) {
+			decodedPage[(paddr % pageSize) / 4] = null;
+
+			if (usingBlockEngine && blockCache[ppn] != null) {
+				blockCache[ppn] = null;
+				blocksInvalidated = true;
+			}
+		}
 	}
 
 	/**
@@ -454,6 +839,49 @@ public final class Processor {
 		loadMask = nextLoadMask;
 	}
 
+	/**
+	 * Complete the in progress delayed load, write the result of a
+	 * non-branching instruction, and advance the PC, exactly as
+	 * <tt>Instruction.writeBack()</tt> would.
+	 * 
+	 * @param dstReg
+	 *            the destination register, or <tt>0</tt> if none.
+	 * @param value
+	 *            the value to write.
+	 */
+	private void writeBack(int dstReg, int value) {
+		finishLoad();
+
+		if (dstReg != 0)
+			registers[dstReg] = value;
+
+		advancePC(registers[regNextPC] + 4);
+	}
+
+	/**
+	 * Complete the in progress delayed load, write the return address of a
+	 * linking branch, and advance the PC to the delay slot, exactly as
+	 * <tt>Instruction.writeBack()</tt> would.
+	 * 
+	 * @param taken
+	 *            <tt>true</tt> if the branch is taken.
+	 * @param target
+	 *            the branch target.
+	 * @param linkReg
+	 *            the register receiving the return address, or <tt>0</tt> if
+	 *            the branch does not link.
+	 */
+	private void branch(boolean taken, int target, int linkReg) {
+		finishLoad();
+
+		int nextPC = registers[regNextPC] + 4;
+
+		if (linkReg != 0)
+			registers[linkReg] = nextPC;
+
+		advancePC(taken ? target : nextPC);
+	}
+
 	/**
 	 * Advance the PC to the next instruction.
 	 * 
@@ -554,12 +982,31 @@ public final class Processor {
 	/** <tt>true</tt> if using a software-managed TLB. */
 	private boolean usingTLB;
 	/** Number of TLB entries. */
-	private int tlbSize = 4;
+	private int tlbSize;
+	/** Number of TLB entries in each set. */
+	private int tlbAssociativity;
+	/** The address space identifier of the running process. */
+	private int asid = 0;
 	/**
 	 * Either an associative or direct-mapped set of translation entries,
 	 * depending on whether there is a TLB.
 	 */
 	private TranslationEntry[] translations;
+	/**
+	 * Open-addressed hash from vpn to the slot of the valid TLB entry for it,
+	 * or -1 for an empty bucket. Rebuilt lazily after the TLB is written.
+	 */
+	private int[] tlbIndex;
+	/** <tt>false</tt> if the TLB has been written since it was indexed. */
+	private boolean tlbIndexValid;
+	/** The vpn and TLB entry of the last instruction fetch, or -1. */
+	private int lastFetchVpn = -1;
+	private TranslationEntry lastFetchEntry;
+	/** The vpn and TLB entry of the last data reference, or -1. */
+	private int lastDataVpn = -1;
+	private TranslationEntry lastDataEntry;
+	/** <tt>true</tt> if memory references are being traced. */
+	private boolean tracing;
 
 	/** Size of a page, in bytes. */
 	public static final int pageSize = 0x400;
@@ -569,6 +1016,26 @@ public final class Processor {
 	private int numPhysPages;
 	/** Main memory for user programs. */
 	private byte[] mainMemory;
+	/**
+	 * Pre-decoded instructions, indexed by physical page and then by word
+	 * within the page. A page's array is allocated the first time an
+	 * instruction is fetched from it.
+	 */
+	private DecodedInstruction[][] decodeCache;
+
+	/** <tt>true</tt> if executing compiled basic blocks. */
+	private boolean usingBlockEngine;
+	/**
+	 * Compiled basic blocks, indexed by the physical page and word of their
+	 * first instruction. Only allocated when using the block engine.
+	 */
+	private Block[][] blockCache;
+	/** Set when a compiled block is discarded because its page changed. */
+	private boolean blocksInvalidated;
+	/** The maximum number of instructions charged with one tick. */
+	private static final int maxBatchSize = 1 << 20;
+	/** The maximum number of instructions in a compiled block. */
+	private static final int maxBlockLength = 64;
 
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
@@ -576,6 +1043,7 @@ public final class Processor {
 	private static final char dbgProcessor = 'p';
 	private static final char dbgDisassemble = 'm';
 	private static final char dbgFullDisassemble = 'M';
+	private static final char dbgInterrupt = 'i';
 
 	private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 		public void flushPipe() {
@@ -631,6 +1099,19 @@ public final class Processor {
 			writeBack();
 		}
 
+		/**
+		 * Execute an instruction that has already been fetched and decoded.
+		 * Used by compiled blocks for instructions they do not specialize.
+		 */
+		public void run(DecodedInstruction decoded) throws MipsException {
+			this.decoded = decoded;
+			value = decoded.value;
+
+			decode();
+			execute();
+			writeBack();
+		}
+
 		private boolean test(int flag) {
 			return Lib.test(flag, flags);
 		}
@@ -641,63 +1122,44 @@ public final class Processor {
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
-			value = readMem(registers[regPC], 4);
+			// the debug output of readMem() is part of the trace, so only
+			// consult the decode cache when it is not being printed
+			if (Lib.test(dbgProcessor)) {
+				value = readMem(registers[regPC], 4);
+				decoded = null;
+				return;
+			}
+
+			decoded = getDecoded(translate(registers[regPC], 4, false, true));
+			value = decoded.value;
 		}
 
 		private void decode() {
-			op = Lib.extract(value, 26, 6);
-			rs = Lib.extract(value, 21, 5);
-			rt = Lib.extract(value, 16, 5);
-			rd = Lib.extract(value, 11, 5);
-			sh = Lib.extract(value, 6, 5);
-			func = Lib.extract(value, 0, 6);
-			target = Lib.extract(value, 0, 26);
-			imm = Lib.extend(value, 0, 16);
-
-			Mips info;
-			switch (op) {
-			case 0:
-				info = Mips.specialtable[func];
-				break;
-			case 1:
-				info = Mips.regimmtable[rt];
-				break;
-			default:
-				info = Mips.optable[op];
-				break;
-			}
-
-			operation = info.operation;
-			name = info.name;
-			format = info.format;
-			flags = info.flags;
+			if (decoded == null)
+				decoded = new DecodedInstruction(value);
+
+			op = decoded.op;
+			rs = decoded.rs;
+			rt = decoded.rt;
+			rd = decoded.rd;
+			sh = decoded.sh;
+			func = decoded.func;
+			target = decoded.target;
+			imm = decoded.imm;
+
+			operation = decoded.operation;
+			name = decoded.name;
+			format = decoded.format;
+			flags = decoded.flags;
+			size = decoded.size;
+			dstReg = decoded.dstReg;
 
 			mask = 0xFFFFFFFF;
 			branch = true;
 
-			// get memory access size
-			if (test(Mips.SIZEB))
-				size = 1;
-			else if (test(Mips.SIZEH))
-				size = 2;
-			else if (test(Mips.SIZEW))
-				size = 4;
-			else
-				size = 0;
-
 			// get nextPC
 			nextPC = registers[regNextPC] + 4;
 
-			// get dstReg
-			if (test(Mips.DSTRA))
-				dstReg = regRA;
-			else if (format == Mips.IFMT)
-				dstReg = rt;
-			else if (format == Mips.RFMT)
-				dstReg = rd;
-			else
-				dstReg = -1;
-
 			// get jtarget
 			if (format == Mips.RFMT)
 				jtarget = registers[rs];
@@ -1072,6 +1534,7 @@ public final class Processor {
 		}
 
 		// state used to execute a single instruction
+		DecodedInstruction decoded;
 		int value, op, rs, rt, rd, sh, func, target, imm;
 		int operation, format, flags;
 		String name;
@@ -1083,6 +1546,364 @@ public final class Processor {
 		boolean branch;
 	}
 
+	/**
+	 * A basic block, compiled into instructions that run without being fetched
+	 * or decoded again.
+	 */
+	private class Block {
+		Block(int paddr, Instruction inst) {
+			ArrayList<CompiledInstruction> code =
+					new ArrayList<CompiledInstruction>();
+
+			int pageEnd = (paddr / pageSize + 1) * pageSize;
+			boolean delaySlot = false;
+
+			for (; paddr < pageEnd && code.size() < maxBlockLength; paddr += 4) {
+				DecodedInstruction decoded = getDecoded(paddr);
+				code.add(compile(decoded, inst));
+
+				if (delaySlot || decoded.operation == Mips.SYSCALL
+						|| decoded.operation == Mips.UNIMPL
+						|| decoded.operation == Mips.INVALID)
+					break;
+
+				delaySlot = Lib.test(Mips.BRANCH, decoded.flags);
+			}
+
+			this.code = code.toArray(new CompiledInstruction[code.size()]);
+		}
+
+		final CompiledInstruction[] code;
+	}
+
+	/**
+	 * An instruction specialized for its operation and operands. Each one
+	 * reads its sources, completes the previous delayed load, writes its
+	 * result, and advances the PC, in the same order as the interpreter.
+	 */
+	private abstract class CompiledInstruction {
+		abstract void run() throws MipsException;
+	}
+
+	/**
+	 * Compile a decoded instruction. Instructions that can cause an exception
+	 * other than an address translation fault, and the rarely used partial
+	 * word loads and stores, are left to the interpreter.
+	 * 
+	 * @param decoded
+	 *            the instruction to compile.
+	 * @param inst
+	 *            the interpreter to run the instruction if it is not
+	 *            specialized.
+	 * @return the compiled instruction.
+	 */
+	private CompiledInstruction compile(final DecodedInstruction decoded,
+			final Instruction inst) {
+		final int rs = decoded.rs, rt = decoded.rt, dstReg = decoded.dstReg;
+		final int size = decoded.size;
+		final boolean unsigned = Lib.test(Mips.UNSIGNED, decoded.flags);
+		final int imm = unsigned ? decoded.imm & 0xFFFF : decoded.imm;
+		final int linkReg = Lib.test(Mips.LINK, decoded.flags) ? dstReg : 0;
+
+		// shift amount comes from the instruction, or from rs if variable
+		final int sh = Lib.test(Mips.SRC1SH, decoded.flags) ? decoded.sh : -1;
+
+		boolean immediate = Lib.test(Mips.SRC2IMM, decoded.flags);
+
+		switch (decoded.operation) {
+		case Mips.ADD:
+			if (Lib.test(Mips.OVERFLOW, decoded.flags))
+				break;
+			if (immediate)
+				return new CompiledInstruction() {
+					void run() {
+						writeBack(dstReg, registers[rs] + imm);
+					}
+				};
+			return new CompiledInstruction() {
+				void run() {
+					writeBack(dstReg, registers[rs] + registers[rt]);
+				}
+			};
+		case Mips.SUB:
+			if (Lib.test(Mips.OVERFLOW, decoded.flags))
+				break;
+			return new CompiledInstruction() {
+				void run() {
+					writeBack(dstReg, registers[rs] - registers[rt]);
+				}
+			};
+
+		case Mips.SLL:
+			return new CompiledInstruction() {
+				void run() {
+					int shift = (sh >= 0 ? sh : registers[rs]) & 0x1F;
+					writeBack(dstReg, registers[rt] << shift);
+				}
+			};
+		case Mips.SRA:
+			return new CompiledInstruction() {
+				void run() {
+					int shift = (sh >= 0 ? sh : registers[rs]) & 0x1F;
+					writeBack(dstReg, registers[rt] >> shift);
+				}
+			};
+		case Mips.SRL:
+			// shifts the sign-extended operand, like execute() does
+			return new CompiledInstruction() {
+				void run() {
+					int shift = (sh >= 0 ? sh : registers[rs]) & 0x1F;
+					writeBack(dstReg, (int) ((long) registers[rt] >>> shift));
+				}
+			};
+
+		case Mips.SLT:
+			if (immediate && unsigned)
+				return new CompiledInstruction() {
+					void run() {
+						writeBack(dstReg,
+								(registers[rs] & 0xFFFFFFFFL) < imm ? 1 : 0);
+					}
+				};
+			if (immediate)
+				return new CompiledInstruction() {
+					void run() {
+						writeBack(dstReg, registers[rs] < imm ? 1 : 0);
+					}
+				};
+			if (unsigned)
+				return new CompiledInstruction() {
+					void run() {
+						writeBack(dstReg, (registers[rs] & 0xFFFFFFFFL)
+								< (registers[rt] & 0xFFFFFFFFL) ? 1 : 0);
+					}
+				};
+			return new CompiledInstruction() {
+				void run() {
+					writeBack(dstReg, registers[rs] < registers[rt] ? 1 : 0);
+				}
+			};
+
+		case Mips.AND:
+			if (immediate)
+				return new CompiledInstruction() {
+					void run() {
+						writeBack(dstReg, registers[rs] & imm);
+					}
+				};
+			return new CompiledInstruction() {
+				void run() {
+					writeBack(dstReg, registers[rs] & registers[rt]);
+				}
+			};
+		case Mips.OR:
+			if (immediate)
+				return new CompiledInstruction() {
+					void run() {
+						writeBack(dstReg, registers[rs] | imm);
+					}
+				};
+			return new CompiledInstruction() {
+				void run() {
+					writeBack(dstReg, registers[rs] | registers[rt]);
+				}
+			};
+		case Mips.XOR:
+			if (immediate)
+				return new CompiledInstruction() {
+					void run() {
+						writeBack(dstReg, registers[rs] ^ imm);
+					}
+				};
+			return new CompiledInstruction() {
+				void run() {
+					writeBack(dstReg, registers[rs] ^ registers[rt]);
+				}
+			};
+		case Mips.NOR:
+			return new CompiledInstruction() {
+				void run() {
+					writeBack(dstReg, ~(registers[rs] | registers[rt]));
+				}
+			};
+		case Mips.LUI:
+			return new CompiledInstruction() {
+				void run() {
+					writeBack(dstReg, imm << 16);
+				}
+			};
+
+		case Mips.MULT:
+			return new CompiledInstruction() {
+				void run() {
+					long product = unsigned ? (registers[rs] & 0xFFFFFFFFL)
+							* (registers[rt] & 0xFFFFFFFFL)
+							: (long) registers[rs] * registers[rt];
+					registers[regLo] = (int) product;
+					registers[regHi] = (int) (product >>> 32);
+					writeBack(0, 0);
+				}
+			};
+		case Mips.MFLO:
+			return new CompiledInstruction() {
+				void run() {
+					writeBack(dstReg, registers[regLo]);
+				}
+			};
+		case Mips.MFHI:
+			return new CompiledInstruction() {
+				void run() {
+					writeBack(dstReg, registers[regHi]);
+				}
+			};
+
+		case Mips.JUMP:
+			if (decoded.format == Mips.JFMT) {
+				final int target = decoded.target << 2;
+				return new CompiledInstruction() {
+					void run() {
+						branch(true, (registers[regNextPC] & 0xF0000000)
+								| target, linkReg);
+					}
+				};
+			}
+			return new CompiledInstruction() {
+				void run() {
+					branch(true, registers[rs], linkReg);
+				}
+			};
+		case Mips.BEQ:
+			return new CompiledInstruction() {
+				void run() {
+					branch(registers[rs] == registers[rt], registers[regNextPC]
+							+ (imm << 2), linkReg);
+				}
+			};
+		case Mips.BNE:
+			return new CompiledInstruction() {
+				void run() {
+					branch(registers[rs] != registers[rt], registers[regNextPC]
+							+ (imm << 2), linkReg);
+				}
+			};
+		case Mips.BGEZ:
+			return new CompiledInstruction() {
+				void run() {
+					branch(registers[rs] >= 0, registers[regNextPC]
+							+ (imm << 2), linkReg);
+				}
+			};
+		case Mips.BGTZ:
+			return new CompiledInstruction() {
+				void run() {
+					branch(registers[rs] > 0, registers[regNextPC]
+							+ (imm << 2), linkReg);
+				}
+			};
+		case Mips.BLEZ:
+			return new CompiledInstruction() {
+				void run() {
+					branch(registers[rs] <= 0, registers[regNextPC]
+							+ (imm << 2), linkReg);
+				}
+			};
+		case Mips.BLTZ:
+			return new CompiledInstruction() {
+				void run() {
+					branch(registers[rs] < 0, registers[regNextPC]
+							+ (imm << 2), linkReg);
+				}
+			};
+
+		case Mips.LOAD:
+			return new CompiledInstruction() {
+				void run() throws MipsException {
+					int value = readMem(registers[rs] + imm, size);
+					if (!unsigned)
+						value = Lib.extend(value, 0, size * 8);
+
+					delayedLoad(rt, value, 0xFFFFFFFF);
+					advancePC(registers[regNextPC] + 4);
+				}
+			};
+		case Mips.STORE:
+			return new CompiledInstruction() {
+				void run() throws MipsException {
+					writeMem(registers[rs] + imm, size, registers[rt]);
+					writeBack(0, 0);
+				}
+			};
+		}
+
+		return new CompiledInstruction() {
+			void run() throws MipsException {
+				inst.run(decoded);
+			}
+		};
+	}
+
+	/**
+	 * The parts of an instruction that depend only on the instruction word, so
+	 * that they need not be recomputed every time the word is executed.
+	 */
+	private static final class DecodedInstruction {
+		DecodedInstruction(int value) {
+			this.value = value;
+
+			op = Lib.extract(value, 26, 6);
+			rs = Lib.extract(value, 21, 5);
+			rt = Lib.extract(value, 16, 5);
+			rd = Lib.extract(value, 11, 5);
+			sh = Lib.extract(value, 6, 5);
+			func = Lib.extract(value, 0, 6);
+			target = Lib.extract(value, 0, 26);
+			imm = Lib.extend(value, 0, 16);
+
+			Mips info;
+			switch (op) {
+			case 0:
+				info = Mips.specialtable[func];
+				break;
+			case 1:
+				info = Mips.regimmtable[rt];
+				break;
+			default:
+				info = Mips.optable[op];
+				break;
+			}
+
+			operation = info.operation;
+			name = info.name;
+			format = info.format;
+			flags = info.flags;
+
+			// get memory access size
+			if (Lib.test(Mips.SIZEB, flags))
+				size = 1;
+			else if (Lib.test(Mips.SIZEH, flags))
+				size = 2;
+			else if (Lib.test(Mips.SIZEW, flags))
+				size = 4;
+			else
+				size = 0;
+
+			// get dstReg
+			if (Lib.test(Mips.DSTRA, flags))
+				dstReg = regRA;
+			else if (format == Mips.IFMT)
+				dstReg = rt;
+			else if (format == Mips.RFMT)
+				dstReg = rd;
+			else
+				dstReg = -1;
+		}
+
+		final int value, op, rs, rt, rd, sh, func, target, imm;
+		final int operation, format, flags;
+		final String name;
+		final int size, dstReg;
+	}
+
 	private static class Mips {
 		Mips() {
 		}
@@ -164,6 +164,30 @@ public abstract class Privilege {
 		 *            user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Advance the simulated time by several ticks at once. This has the
+		 * same effect as calling <tt>tick(inKernelMode)</tt>
+		 * <i>numTicks</i> times, provided that no interrupt falls due before
+		 * the last of those ticks; pending interrupts are only checked once,
+		 * after the last tick.
+		 * 
+		 * @param inKernelMode
+		 *            <tt>true</tt> if the current thread is running kernel
+		 *            code, <tt>false</tt> if the current thread is running MIPS
+		 *            user code.
+		 * @param numTicks
+		 *            the number of ticks to advance.
+		 */
+		public void tick(boolean inKernelMode, int numTicks);
+
+		/**
+		 * Return the time at which the earliest pending interrupt is due.
+		 * 
+		 * @return the time of the next pending interrupt, or
+		 *         <tt>Long.MAX_VALUE</tt> if no interrupt is pending.
+		 */
+		public long nextInterruptTime();
 	}
 
 	/**
@@ -33,16 +33,36 @@ public class Alarm {
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
 	 * periodically (approximately every 500 clock ticks). Causes the current
-	 * thread to yield, forcing a context switch if there is another thread that
-	 * should be run.
+	 * thread to yield, if the scheduler wants it to, forcing a context switch
+	 * if there is another thread that should be run, and wakes the threads
+	 * whose waits have expired. Schedulers that ask for it get the woken
+	 * threads before the preemption decision, so that they can compete at
+	 * this interrupt instead of the next.
 	 */
 	public void timerInterrupt() {
-		KThread.yield();
 		boolean intStatus = Machine.interrupt().disable();
+		boolean wakeFirst = ThreadedKernel.scheduler.wakeBeforePreempt();
+		if (wakeFirst)
+			wakeExpired();
+		boolean preempt = ThreadedKernel.scheduler.shouldPreempt();
+		Machine.interrupt().restore(intStatus);
+		if (preempt)
+			KThread.yield();
+		if (!wakeFirst) {
+			intStatus = Machine.interrupt().disable();
+			wakeExpired();
+			Machine.interrupt().restore(intStatus);
+		}
+	}
+
+	/**
+	 * Move the threads whose waits have expired to the ready queue. Must be
+	 * called with interrupts disabled.
+	 */
+	private void wakeExpired() {
 		while(!waitQueue.isEmpty() && waitQueue.peek().time <= Machine.timer().getTime()){
 			waitQueue.poll().thread.ready();
 		}
-		Machine.interrupt().restore(intStatus);
 	}
 
 	/**
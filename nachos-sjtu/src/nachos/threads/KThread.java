@@ -57,7 +57,7 @@ public class KThread {
 		if (currentThread != null) {
 			tcb = new TCB();
 		} else {
-			readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+			readyQueue = ThreadedKernel.scheduler.newReadyQueue();
 			readyQueue.acquire(this);
 
 			currentThread = this;
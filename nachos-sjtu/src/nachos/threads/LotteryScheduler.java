@@ -1,6 +1,7 @@
 package nachos.threads;
 
 import nachos.machine.Lib;
+import nachos.machine.Machine;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -41,54 +42,214 @@ public class LotteryScheduler extends PriorityScheduler {
 		return new LotteryQueue(transferPriority);
 	}
 	
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		getThreadState(thread).setPriority(priority);
+	}
+
+	public boolean increasePriority() {
+		return changePriority(1);
+	}
+
+	public boolean decreasePriority() {
+		return changePriority(-1);
+	}
+
+	private boolean changePriority(int delta) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+		long priority = (long) getPriority(thread) + delta;
+		boolean changed = priority >= priorityMinimum
+				&& priority <= priorityMaximum;
+		if (changed)
+			setPriority(thread, (int) priority);
+
+		Machine.interrupt().restore(intStatus);
+		return changed;
+	}
+
 	public static final int priorityMaximum = Integer.MAX_VALUE;
 	public static final int priorityMinimum = 1;
-	
-	public static void updatePriority(ThreadState cur) {
-		//Lib.assertTrue(Machine.interrupt().disabled());
-		while(cur != null){
-			int p = cur.priority;
-			for (PriorityQueue t  : cur.owningQueue){
-				if (!t.transferPriority || t.waitQueue.isEmpty())continue;
-				for (ThreadState s : t.waitQueue){
-					p += s.effectivePriority;
+
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 * Each waiting thread has a slot in a Fenwick tree of ticket counts, so
+	 * that drawing the winner, adding or removing a thread and changing its
+	 * tickets take time logarithmic in the number of slots. Freed slots are
+	 * reused; the tree doubles when it runs out.
+	 */
+	protected class LotteryQueue extends PriorityQueue {
+		public LotteryQueue(boolean transferPriority) {
+			super(transferPriority);
+		}
+
+		/**
+		 * Draw a ticket and return the thread holding it.
+		 */
+		public ThreadState pickNextThread() {
+			if (count == 0)
+				return null;
+			if (total == 0)
+				return first();
+			long ticket = Math.min((long) (Lib.random() * total), total - 1);
+			return slots[find(ticket)];
+		}
+
+		void add(ThreadState state) {
+			LotteryThreadState s = (LotteryThreadState) state;
+			if (numFree == 0)
+				grow();
+			s.slot = free[--numFree];
+			slots[s.slot] = s;
+			update(s.slot, s.effectivePriority);
+			total += s.effectivePriority;
+			count++;
+		}
+
+		void remove(ThreadState state) {
+			LotteryThreadState s = (LotteryThreadState) state;
+			update(s.slot, -s.effectivePriority);
+			total -= s.effectivePriority;
+			slots[s.slot] = null;
+			free[numFree++] = s.slot;
+			s.slot = -1;
+			count--;
+		}
+
+		void reposition(ThreadState state, int effectivePriority) {
+			LotteryThreadState s = (LotteryThreadState) state;
+			update(s.slot, (long) effectivePriority - s.effectivePriority);
+			total += (long) effectivePriority - s.effectivePriority;
+			s.effectivePriority = effectivePriority;
+		}
+
+		/**
+		 * Donate the tickets of every waiting thread, or -1 if none waits.
+		 * This is the running sum kept by <tt>add()</tt>, <tt>remove()</tt>
+		 * and <tt>reposition()</tt>, so donation never scans the waiters.
+		 */
+		int getDonation() {
+			return count == 0 ? -1 : (int) Math.min(total, priorityMaximum);
+		}
+
+		/**
+		 * Return the most tickets any waiting thread holds. This scans every
+		 * waiter; donation uses <tt>getDonation()</tt> instead.
+		 */
+		public int maxPriority() {
+			int max = -1;
+			for (ThreadState t = first(); t != null; t = next(t))
+				max = Math.max(max, t.effectivePriority);
+			return max;
+		}
+
+		protected ThreadState first() {
+			return nextSlot(0);
+		}
+
+		protected ThreadState next(ThreadState state) {
+			return nextSlot(((LotteryThreadState) state).slot + 1);
+		}
+
+		@Override
+		public boolean isEmtpy() {
+			return count == 0;
+		}
+
+		private ThreadState nextSlot(int slot) {
+			for (; slot < slots.length; slot++) {
+				if (slots[slot] != null)
+					return slots[slot];
+			}
+			return null;
+		}
+
+		/**
+		 * Add <tt>delta</tt> tickets to a slot.
+		 */
+		private void update(int slot, long delta) {
+			for (int i = slot + 1; i <= slots.length; i += i & -i)
+				tree[i] += delta;
+		}
+
+		/**
+		 * Return the slot holding a ticket, numbering the tickets of the slots
+		 * in order from 0.
+		 */
+		private int find(long ticket) {
+			int pos = 0;
+			for (int step = Integer.highestOneBit(slots.length); step > 0; step >>= 1) {
+				if (pos + step <= slots.length && tree[pos + step] <= ticket) {
+					pos += step;
+					ticket -= tree[pos];
 				}
 			}
-			if(p == cur.effectivePriority)return;
-			else if(cur.waitingFor == null){
-				cur.effectivePriority = p;
-				return;
-			}else {
-				boolean tmp = cur.waitingFor.waitQueue.remove(cur);
-				Lib.assertTrue(tmp);
-				cur.effectivePriority=p;
-				cur.waitingFor.waitQueue.add(cur);
-				if(cur.waitingFor.transferPriority)
-					cur = cur.waitingFor.owner;
-				else return;
+			return pos;
+		}
+
+		/**
+		 * Double the number of slots and rebuild the tree.
+		 */
+		private void grow() {
+			int size = slots.length == 0 ? initialSlots : slots.length * 2;
+			LotteryThreadState[] oldSlots = slots;
+			slots = new LotteryThreadState[size];
+			System.arraycopy(oldSlots, 0, slots, 0, oldSlots.length);
+			tree = new long[size + 1];
+			for (int i = 0; i < oldSlots.length; i++) {
+				if (slots[i] != null)
+					update(i, slots[i].effectivePriority);
 			}
+			free = new int[size];
+			numFree = 0;
+			for (int i = size - 1; i >= oldSlots.length; i--)
+				free[numFree++] = i;
 		}
+
+		private LotteryThreadState[] slots = new LotteryThreadState[0];
+		/** Fenwick tree over the tickets of <tt>slots</tt>, indexed from 1. */
+		private long[] tree = new long[1];
+		/** The tickets of all waiting threads. */
+		private long total = 0;
+		/** The free slots, the lowest on top. */
+		private int[] free = new int[0];
+		private int numFree = 0, count = 0;
 	}
-	
-	protected class LotteryQueue extends PriorityQueue{
-		public LotteryQueue(boolean transferPriority){
-			super(transferPriority);
+
+	/**
+	 * The scheduling state of a thread under a lottery. Donated tickets add
+	 * to the thread's own.
+	 */
+	protected class LotteryThreadState extends ThreadState {
+		public LotteryThreadState(KThread thread) {
+			super(thread);
 		}
-		public ThreadState pickNextThread(){
-			int cnt = 1;
-			for (ThreadState t:waitQueue) cnt += t.effectivePriority;
-			int ticket = Lib.random(cnt);
-			cnt = 1;
-			for (ThreadState t:waitQueue){
-				cnt+=t.effectivePriority;
-				if(cnt>=ticket) {
-					//System.out.println("picked "+ t.thread.toString());
-					return t;
-					
-				}
-			}
-			return null;
+
+		void donationChanged(int old, int now) {
+			donated += Math.max(now, 0) - Math.max(old, 0);
 		}
-		
+
+		int computeEffectivePriority() {
+			return (int) Math.min(priority + donated, priorityMaximum);
+		}
+
+		/** The tickets donated by the queues this thread owns. */
+		private long donated;
+		/** The slot of this thread in the queue it waits on, or -1. */
+		int slot = -1;
 	}
+
+	private static final int initialSlots = 16;
 }
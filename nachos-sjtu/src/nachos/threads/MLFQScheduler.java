@@ -0,0 +1,403 @@
+package nachos.threads;
+
+import nachos.machine.Config;
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.machine.Stats;
+
+/**
+ * A multi-level feedback queue scheduler. It tells CPU-bound threads from
+ * interactive ones by watching how they use the processor, without being
+ * told their priorities.
+ *
+ * <p>
+ * There are <tt>MLFQScheduler.levels</tt> levels. A queue hands out the
+ * first thread of its highest nonempty level, and threads of one level are
+ * served first-come first-served. Every thread starts at the top. A thread
+ * may use the processor for <tt>MLFQScheduler.quantum</tt> timer interrupts
+ * (<tt>Stats.TimerTicks</tt> ticks each) at the top level, twice that at the
+ * next, and so on. The time is charged from the timer whenever the thread
+ * stops running, however it stops. A thread that has used up its quantum is
+ * moved down a level. A thread that blocks before using it up is moved up a
+ * level when it wakes, and starts a new quantum.
+ *
+ * <p>
+ * A timer interrupt only preempts the current thread if its quantum is used
+ * up, or if a thread of a higher level is ready. Every
+ * <tt>MLFQScheduler.boostInterval</tt> timer interrupts every thread is moved
+ * back to the top level, so that CPU-bound threads cannot starve, and a
+ * thread that has become interactive is noticed.
+ *
+ * <p>
+ * The priority of a thread is its level counted from the bottom, so 0 is the
+ * lowest and <tt>levels - 1</tt> the highest. Setting a priority moves the
+ * thread to that level; priorities out of range are clamped. Priorities are
+ * not donated.
+ */
+public class MLFQScheduler extends Scheduler {
+	/**
+	 * Allocate a new multi-level feedback queue scheduler.
+	 */
+	public MLFQScheduler() {
+		numLevels = Config.getInteger("MLFQScheduler.levels", 3);
+		quantum = Config.getInteger("MLFQScheduler.quantum", 1);
+		boostInterval = Config.getInteger("MLFQScheduler.boostInterval", 50);
+		Lib.assertTrue(numLevels > 0 && numLevels < 30 && quantum > 0
+				&& boostInterval > 0, "bad MLFQScheduler settings");
+		nextBoost = (long) boostInterval * Stats.TimerTicks;
+	}
+
+	/**
+	 * Allocate a new multi-level thread queue.
+	 *
+	 * @param transferPriority
+	 *            ignored. Priorities are not donated.
+	 * @return a new multi-level thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new MLFQueue(false);
+	}
+
+	/**
+	 * Allocate the ready queue. Only it charges threads for the time they
+	 * run.
+	 *
+	 * @return the new ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		Lib.assertTrue(readyQueue == null);
+		readyQueue = new MLFQueue(true);
+		return readyQueue;
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return numLevels - 1 - getThreadState(thread).level;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		priority = Math.max(0, Math.min(priority, numLevels - 1));
+		ThreadState state = getThreadState(thread);
+		state.used = 0;
+		state.epoch = epoch;
+		move(state, numLevels - 1 - priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == numLevels - 1) {
+			Machine.interrupt().restore(intStatus);
+			return false;
+		}
+
+		setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return true;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == 0) {
+			Machine.interrupt().restore(intStatus);
+			return false;
+		}
+
+		setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return true;
+	}
+
+	/**
+	 * Preempt the current thread only if it has used up its quantum, or a
+	 * thread of a higher level is ready.
+	 */
+	public boolean shouldPreempt() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		long now = Machine.timer().getTime();
+		boostIfDue(now);
+		if (readyQueue.isEmtpy())
+			return false;
+
+		ThreadState state = getThreadState(KThread.currentThread());
+		return expired(state.level, state.used + now - state.dispatched)
+				|| readyQueue.firstLevel() < state.level;
+	}
+
+	/**
+	 * Wake sleepers before the preemption decision, so that an interactive
+	 * thread of a higher level takes the processor at the interrupt that
+	 * wakes it.
+	 */
+	public boolean wakeBeforePreempt() {
+		return true;
+	}
+
+	/**
+	 * Return a one-line summary of the scheduling decisions made.
+	 */
+	public String getStats() {
+		return "levels " + numLevels + ", demotions " + numDemotions
+				+ ", promotions on wakeup " + numPromotions
+				+ ", periodic boosts " + numBoosts;
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread
+	 *            the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Return <tt>true</tt> if a thread at the specified level that has run
+	 * <i>used</i> ticks has used up its quantum. The timer fires every
+	 * <tt>Stats.TimerTicks</tt> ticks give or take a few, so the quantum is
+	 * rounded to the nearest interrupt.
+	 */
+	private boolean expired(int level, long used) {
+		return used >= ((long) quantum << level) * Stats.TimerTicks
+				- Stats.TimerTicks / 2;
+	}
+
+	/**
+	 * Charge a thread that is giving up the processor for the time it ran.
+	 * Move it down a level if it has used up its quantum, or note that it
+	 * blocked early if it is not waiting in the ready queue.
+	 */
+	private void charge(ThreadState state) {
+		long now = Machine.timer().getTime();
+		state.used += now - state.dispatched;
+		state.dispatched = now;
+
+		if (expired(state.level, state.used)) {
+			state.used = 0;
+			if (state.level < numLevels - 1) {
+				move(state, state.level + 1);
+				numDemotions++;
+			}
+		} else if (state.queue != readyQueue) {
+			state.blocked = true;
+		}
+
+		boostIfDue(now);
+	}
+
+	/**
+	 * Move every thread back to the top level if a boost is due. Threads in
+	 * the ready queue and the current thread are moved at once; the others
+	 * when they are next ready.
+	 */
+	private void boostIfDue(long now) {
+		if (now < nextBoost)
+			return;
+
+		nextBoost = now + (long) boostInterval * Stats.TimerTicks;
+		epoch++;
+		numBoosts++;
+
+		for (int level = 1; level < numLevels; level++) {
+			while (readyQueue.heads[level] != null) {
+				ThreadState state = readyQueue.heads[level];
+				state.used = 0;
+				state.epoch = epoch;
+				move(state, 0);
+			}
+		}
+
+		ThreadState current = getThreadState(KThread.currentThread());
+		current.used = 0;
+		current.dispatched = now;
+		current.epoch = epoch;
+		move(current, 0);
+	}
+
+	/**
+	 * Move a thread to the specified level, and to the end of that level in
+	 * the queue it waits in, if any.
+	 */
+	private void move(ThreadState state, int level) {
+		MLFQueue queue = state.queue;
+		if (queue != null)
+			queue.remove(state);
+		state.level = level;
+		if (queue != null)
+			queue.add(state);
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that keeps a first-come first-served list of
+	 * waiting threads for each level.
+	 */
+	protected class MLFQueue extends ThreadQueue {
+		MLFQueue(boolean ready) {
+			this.ready = ready;
+			heads = new ThreadState[numLevels];
+			tails = new ThreadState[numLevels];
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (ready) {
+				if (state.epoch != epoch) {
+					state.epoch = epoch;
+					state.level = 0;
+					state.used = 0;
+				}
+				if (state.blocked) {
+					state.blocked = false;
+					state.used = 0;
+					if (state.level > 0) {
+						state.level--;
+						numPromotions++;
+					}
+				}
+			}
+			add(state);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			// the current thread is giving up the processor
+			if (ready)
+				charge(getThreadState(KThread.currentThread()));
+
+			if (size == 0)
+				return null;
+
+			ThreadState state = heads[firstLevel()];
+			remove(state);
+			if (ready)
+				state.dispatched = Machine.timer().getTime();
+			return state.thread;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(size == 0);
+			if (ready)
+				getThreadState(thread).dispatched = Machine.timer().getTime();
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int level = 0; level < numLevels; level++)
+				for (ThreadState s = heads[level]; s != null; s = s.next)
+					System.out.print(s.thread + "@" + level + " ");
+		}
+
+		@Override
+		public boolean isEmtpy() {
+			return size == 0;
+		}
+
+		/**
+		 * Return the highest level with a waiting thread, or
+		 * <tt>numLevels</tt> if none waits.
+		 */
+		int firstLevel() {
+			int level = 0;
+			while (level < numLevels && heads[level] == null)
+				level++;
+			return level;
+		}
+
+		void add(ThreadState state) {
+			Lib.assertTrue(state.queue == null);
+			int level = state.level;
+			state.prev = tails[level];
+			state.next = null;
+			if (tails[level] == null)
+				heads[level] = state;
+			else
+				tails[level].next = state;
+			tails[level] = state;
+			state.queue = this;
+			size++;
+		}
+
+		void remove(ThreadState state) {
+			Lib.assertTrue(state.queue == this);
+			int level = state.level;
+			if (state.prev == null)
+				heads[level] = state.next;
+			else
+				state.prev.next = state.next;
+			if (state.next == null)
+				tails[level] = state.prev;
+			else
+				state.next.prev = state.prev;
+			state.prev = state.next = null;
+			state.queue = null;
+			size--;
+		}
+
+		/** <tt>true</tt> if this is the ready queue. */
+		private boolean ready;
+		private ThreadState[] heads, tails;
+		private int size = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread: its level and how much of its
+	 * quantum it has used.
+	 */
+	protected class ThreadState {
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+			epoch = MLFQScheduler.this.epoch;
+			dispatched = Machine.timer().getTime();
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+		/** The level of this thread, 0 being the top. */
+		int level = 0;
+		/** The ticks of its quantum this thread has used. */
+		long used = 0;
+		/** When this thread last started running. */
+		long dispatched;
+		/** <tt>true</tt> if this thread blocked before using up its quantum. */
+		boolean blocked = false;
+		/** The periodic boost this thread has seen. */
+		int epoch;
+		/** The queue this thread waits in, and its neighbours there. */
+		MLFQueue queue = null;
+		ThreadState prev = null, next = null;
+	}
+
+	private int numLevels, quantum, boostInterval;
+	private MLFQueue readyQueue = null;
+	private long nextBoost;
+	private int epoch = 0;
+	private int numDemotions = 0, numPromotions = 0, numBoosts = 0;
+}
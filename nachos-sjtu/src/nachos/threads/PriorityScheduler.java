@@ -1,10 +1,5 @@
 package nachos.threads;
 
-import java.util.Comparator;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.TreeSet;
-
 import nachos.machine.Lib;
 import nachos.machine.Machine;
 
@@ -133,33 +128,34 @@ public class PriorityScheduler extends Scheduler {
 		return (ThreadState) thread.schedulingState;
 	}
 	
+	/**
+	 * Recompute the effective priority of a thread whose priority or
+	 * donations changed, and pass the change on along the chain of queues it
+	 * waits for. Stops as soon as an effective priority, or the highest
+	 * priority waiting in a queue, stays the same.
+	 */
 	public static void updatePriority(ThreadState cur) {
 		//Lib.assertTrue(Machine.interrupt().disabled());
 		while(cur != null){
-			int p = cur.priority;
-			for (PriorityQueue t  : cur.owningQueue){
-				if (!t.transferPriority || t.waitQueue.isEmpty())continue;
-				int tmp = t.waitQueue.first().effectivePriority;
-				p = tmp > p ? tmp : p;
-			}
+			int p = cur.computeEffectivePriority();
 			if(p == cur.effectivePriority)return;
-			else if(cur.waitingFor == null){
+			if(cur.waitingFor == null){
 				cur.effectivePriority = p;
 				return;
-			}else {
-				boolean tmp = cur.waitingFor.waitQueue.remove(cur);
-				Lib.assertTrue(tmp);
-				cur.effectivePriority=p;
-				cur.waitingFor.waitQueue.add(cur);
-				if(cur.waitingFor.transferPriority)
-					cur = cur.waitingFor.owner;
-				else return;
 			}
+			cur.waitingFor.reposition(cur, p);
+			cur = cur.waitingFor.updateDonation();
 		}
 	}
 
 	/**
-	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 * A <tt>ThreadQueue</tt> that sorts threads by priority. Waiting threads
+	 * are kept in one FIFO bucket per effective priority, and a bitmap records
+	 * which buckets are not empty, so that finding the next thread, removing
+	 * a thread and adding a thread that has just started waiting take
+	 * constant time. Within a bucket threads stay in the order they started
+	 * waiting, even when they move between buckets, so a re-prioritized
+	 * thread is inserted by walking its new bucket from the nearer end.
 	 */
 	protected class PriorityQueue extends ThreadQueue {
 		PriorityQueue(boolean transferPriority) {
@@ -181,7 +177,7 @@ public class PriorityScheduler extends Scheduler {
 			//print();
 			ThreadState nt=pickNextThread();
 			if(nt != null) {
-				waitQueue.remove(nt);
+				remove(nt);
 				nt.waitingFor=null;
 				nt.acquire(this);
 				return nt.thread;
@@ -197,32 +193,138 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			if (waitQueue.isEmpty())
+			return first();
+		}
+
+		/**
+		 * Return the waiting thread with the highest effective priority that
+		 * has waited longest, or <tt>null</tt> if no thread is waiting.
+		 */
+		protected ThreadState first() {
+			if (bitmap == 0)
 				return null;
+			return heads[highestBit(bitmap)];
+		}
+
+		/**
+		 * Return the waiting thread after <tt>state</tt> in the order
+		 * <tt>first()</tt> would return them, or <tt>null</tt>.
+		 */
+		protected ThreadState next(ThreadState state) {
+			if (state.next != null)
+				return state.next;
+			int lower = bitmap & ((1 << state.effectivePriority) - 1);
+			return lower == 0 ? null : heads[highestBit(lower)];
+		}
+
+		/**
+		 * Return the highest effective priority of the waiting threads, or -1
+		 * if no thread is waiting.
+		 */
+		public int maxPriority() {
+			return bitmap == 0 ? -1 : highestBit(bitmap);
+		}
+
+		/**
+		 * Add a thread to the bucket of its effective priority, behind the
+		 * threads that started waiting before it. Threads of equal priority
+		 * must leave in the order they arrived, even when donation moves them
+		 * between buckets, so this takes time linear in the distance from the
+		 * nearer end of the bucket. A thread that has just started waiting
+		 * goes straight to the tail, and one that belongs near either end
+		 * is placed after a few steps.
+		 */
+		void add(ThreadState state) {
+			int p = state.effectivePriority;
+			Lib.assertTrue(p >= 0 && p < heads.length);
+			// walk in from both ends at once
+			ThreadState after = tails[p], before = heads[p];
+			while (after != null && after.sequence > state.sequence) {
+				if (before.sequence > state.sequence) {
+					after = before.prev;
+					break;
+				}
+				before = before.next;
+				after = after.prev;
+			}
+			state.prev = after;
+			state.next = after == null ? heads[p] : after.next;
+			if (state.prev == null)
+				heads[p] = state;
 			else
-				return waitQueue.first();
+				state.prev.next = state;
+			if (state.next == null)
+				tails[p] = state;
+			else
+				state.next.prev = state;
+			bitmap |= 1 << p;
+			size++;
+		}
+
+		/**
+		 * Remove a waiting thread from its bucket.
+		 */
+		void remove(ThreadState state) {
+			int p = state.effectivePriority;
+			if (state.prev == null)
+				heads[p] = state.next;
+			else
+				state.prev.next = state.next;
+			if (state.next == null)
+				tails[p] = state.prev;
+			else
+				state.next.prev = state.prev;
+			state.prev = state.next = null;
+			if (heads[p] == null)
+				bitmap &= ~(1 << p);
+			size--;
+		}
+
+		/**
+		 * Return the priority this queue should donate to its owner: the
+		 * highest priority waiting, or -1 if no thread is waiting.
+		 */
+		int getDonation() {
+			return maxPriority();
+		}
+
+		/**
+		 * Give the owner of this queue what <tt>getDonation()</tt> returns,
+		 * in place of what it was given before.
+		 * 
+		 * @return the owner, if its donations changed; otherwise
+		 *         <tt>null</tt>.
+		 */
+		ThreadState updateDonation() {
+			if (!transferPriority || owner == null)
+				return null;
+			int p = getDonation();
+			if (p == donation)
+				return null;
+			owner.donationChanged(donation, p);
+			donation = p;
+			return owner;
+		}
+
+		/**
+		 * Move a waiting thread to the bucket of a new effective priority.
+		 */
+		void reposition(ThreadState state, int effectivePriority) {
+			remove(state);
+			state.effectivePriority = effectivePriority;
+			add(state);
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
 			System.out.println("==========Scheduling Queue Dumps===========");
-//			int a=0;
-//			long b=0;
-//			if (!waitQueue.isEmpty()){
-//				a=waitQueue.first().effectivePriority;
-//				b=waitQueue.first().arriveTime;
-//			}
-			for (ThreadState t: waitQueue){
+			for (ThreadState t = first(); t != null; t = next(t)){
 				System.out.println(t.thread.getName()+":\t"+
 						t.getEffectivePriority()+", "+
 						t.getPriority()+","+
 						t.arriveTime+","+
 						t.thread.getState()+","
 			);
-//				Lib.assertTrue(a>t.getEffectivePriority()||(
-//						a==t.getEffectivePriority()&&b<=t.arriveTime));
-//				a=t.getEffectivePriority();
-//				b=t.arriveTime;
 			}
 		}
 
@@ -233,23 +335,26 @@ public class PriorityScheduler extends Scheduler {
 		public boolean transferPriority;
 		
 		public ThreadState owner;
-		public TreeSet<ThreadState> waitQueue = new TreeSet<ThreadState> (
-				new Comparator<ThreadState>(){
-					public int compare(ThreadState a, ThreadState b){
-						int pa = a.getEffectivePriority(),
-							pb = b.getEffectivePriority();
-						return pa > pb ? -1: pb > pa ? 1:(
-								a.arriveTime < b.arriveTime ? -1:(
-										a.arriveTime > b.arriveTime ? 1:
-											a.thread.compareTo(b.thread)));
-					}
-				});
+		/** The priority this queue donates to <tt>owner</tt>, or -1. */
+		private int donation = -1;
+		
+		/** The first and last waiting thread of each effective priority. */
+		private ThreadState[] heads = new ThreadState[priorityMaximum + 1],
+				tails = new ThreadState[priorityMaximum + 1];
+		/** Bit <i>p</i> is set if a thread of effective priority <i>p</i> waits. */
+		private int bitmap = 0;
+		private int size = 0;
+		
 		@Override
 		public boolean isEmtpy() {
-			return waitQueue.isEmpty();
+			return size == 0;
 		}
 	}
 
+	private static int highestBit(int bits) {
+		return 31 - Integer.numberOfLeadingZeros(bits);
+	}
+
 	/**
 	 * The scheduling state of a thread. This should include the thread's
 	 * priority, its effective priority, any objects it owns, and the queue it's
@@ -319,17 +424,15 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			waitQueue.waitQueue.remove(this);
-			if(waitingFor != null)waitingFor.waitQueue.remove(this);
+			if(waitingFor != null){
+				waitingFor.remove(this);
+				updatePriority(waitingFor.updateDonation());
+			}
 			arriveTime = Machine.timer().getTime();
-			waitQueue.waitQueue.add(this);
+			sequence = nextSequence++;
+			waitQueue.add(this);
 			waitingFor = waitQueue;
-			if(waitQueue.transferPriority){
-				ThreadState t = waitQueue.owner;
-				if(t!=null && t.effectivePriority < effectivePriority){
-					updatePriority(t);
-				}
-			}
+			updatePriority(waitQueue.updateDonation());
 		}
 
 		/**
@@ -343,17 +446,42 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			if (waitQueue.owner != null) {
-				waitQueue.owner.owningQueue.remove(waitQueue);
-				if (waitQueue.transferPriority)
-					updatePriority(waitQueue.owner);
+			ThreadState previous = waitQueue.owner;
+			if (previous != null && waitQueue.donation >= 0) {
+				previous.donationChanged(waitQueue.donation, -1);
+				waitQueue.donation = -1;
+				updatePriority(previous);
 			}
 			waitQueue.owner = this;
 			//FIXME: why here waitingFor can't be cleaned-up?
 			//waitingFor = null;
-			owningQueue.add(waitQueue);
-			if (waitQueue.transferPriority)
-				updatePriority(this);
+			updatePriority(waitQueue.updateDonation());
+		}
+
+		/**
+		 * Note that a queue this thread owns now donates <tt>now</tt> instead
+		 * of <tt>old</tt>; -1 stands for no donation.
+		 */
+		void donationChanged(int old, int now) {
+			if (old >= 0 && --donations[old] == 0)
+				donationBits &= ~(1 << old);
+			if (now >= 0 && donations[now]++ == 0)
+				donationBits |= 1 << now;
+		}
+
+		/**
+		 * Return the highest priority donated to this thread, or -1.
+		 */
+		int maxDonation() {
+			return donationBits == 0 ? -1 : highestBit(donationBits);
+		}
+
+		/**
+		 * Return the effective priority this thread should have: the highest
+		 * of its own priority and the priorities donated to it.
+		 */
+		int computeEffectivePriority() {
+			return Math.max(priority, maxDonation());
 		}
 
 		
@@ -366,6 +494,18 @@ public class PriorityScheduler extends Scheduler {
 		
 		// for tree DFS
 		public PriorityQueue waitingFor = null;
-		public Set<PriorityQueue> owningQueue = new HashSet<PriorityQueue>();
+		/**
+		 * How many queues this thread owns donate each priority, and a bitmap
+		 * of the priorities donated at all.
+		 */
+		private int[] donations = new int[priorityMaximum + 1];
+		private int donationBits = 0;
+		
+		/** When this thread started waiting, in the order threads did. */
+		long sequence;
+		/** The neighbours of this thread in its bucket of <tt>waitingFor</tt>. */
+		ThreadState prev, next;
 	}
+	
+	private long nextSequence = 0;
 }
@@ -51,6 +51,19 @@ public abstract class Scheduler {
 	 */
 	public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+	/**
+	 * Allocate the ready queue, which holds the threads waiting for the CPU.
+	 * <tt>KThread</tt> calls this once, when the first thread is created.
+	 * Schedulers that account for CPU time can tell the ready queue from the
+	 * queues of locks, semaphores and joins this way. The default is a queue
+	 * without priority transfer.
+	 * 
+	 * @return the new ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		return newThreadQueue(false);
+	}
+
 	/**
 	 * Get the priority of the specified thread. Must be called with interrupts
 	 * disabled.
@@ -157,4 +170,28 @@ public abstract class Scheduler {
 	public boolean decreasePriority() {
 		return false;
 	}
+
+	/**
+	 * Decide whether a timer interrupt should preempt the current thread.
+	 * Called by the alarm on every timer interrupt, with interrupts disabled.
+	 * The default preempts on every interrupt.
+	 * 
+	 * @return <tt>true</tt> if the current thread should yield the CPU.
+	 */
+	public boolean shouldPreempt() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		return true;
+	}
+
+	/**
+	 * Decide whether the alarm should wake the threads whose waits expired
+	 * before it asks {@link #shouldPreempt()}, rather than after the current
+	 * thread has yielded. The default is <tt>false</tt>, so that a woken thread
+	 * waits for the next context switch like any other ready thread.
+	 * 
+	 * @return <tt>true</tt> if timer interrupts should wake sleepers first.
+	 */
+	public boolean wakeBeforePreempt() {
+		return false;
+	}
 }
@@ -0,0 +1,234 @@
+package nachos.threads;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+
+/**
+ * A scheduler that shares the processor in proportion to tickets, like a
+ * <tt>LotteryScheduler</tt>, but deterministically.
+ *
+ * <p>
+ * Each thread has a stride, inversely proportional to its tickets, and a
+ * pass. The ready queue runs the waiting thread with the lowest pass, and
+ * advances that thread's pass by its stride, so over any run of dispatches
+ * each thread runs in proportion to its tickets, give or take one. Among
+ * threads with equal passes the one that has waited longest is chosen.
+ *
+ * <p>
+ * A thread that becomes ready cannot keep a pass behind the ready queue's,
+ * or it would make up for the time it was blocked. When a thread's tickets
+ * change while it is ready, the rest of its current stride is scaled to the
+ * new one.
+ *
+ * <p>
+ * Only the ready queue charges passes. The queues of locks, semaphores and
+ * joins hand out the waiter with the lowest pass, the one owed the most
+ * processor time, but leave the passes alone, so waiting for a lock costs a
+ * thread none of its share. Passes grow without bound and may wrap around,
+ * so they are only ever compared by their difference.
+ *
+ * <p>
+ * Tickets and their transfer through locks and joins are those of
+ * <tt>LotteryScheduler</tt>: donated tickets add to a thread's own.
+ */
+public class StrideScheduler extends LotteryScheduler {
+	/**
+	 * Allocate a new stride scheduler.
+	 */
+	public StrideScheduler() {
+	}
+
+	/**
+	 * Allocate a new stride thread queue.
+	 *
+	 * @param transferPriority
+	 *            <tt>true</tt> if this queue should transfer tickets from
+	 *            waiting threads to the owning thread.
+	 * @return a new stride thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new StrideQueue(transferPriority, false);
+	}
+
+	public ThreadQueue newReadyQueue() {
+		return new StrideQueue(false, true);
+	}
+
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new StrideThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * The stride of a thread with one ticket. A thread with more than this
+	 * many tickets gets the smallest stride, 1.
+	 */
+	private static final long stride1 = 1 << 20;
+
+	private static long strideOf(int tickets) {
+		return Math.max(stride1 / Math.max(tickets, 1), 1);
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that keeps its waiting threads in a binary heap
+	 * ordered by pass.
+	 */
+	protected class StrideQueue extends PriorityQueue {
+		public StrideQueue(boolean transferPriority, boolean ready) {
+			super(transferPriority);
+			this.ready = ready;
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			StrideThreadState next = (StrideThreadState) pickNextThread();
+			if (next == null)
+				return null;
+			remove(next);
+			next.waitingFor = null;
+			if (ready) {
+				passNow = next.pass;
+				next.pass += strideOf(next.effectivePriority);
+			}
+			next.acquire(this);
+			return next.thread;
+		}
+
+		protected ThreadState pickNextThread() {
+			return size == 0 ? null : heap[0];
+		}
+
+		void add(ThreadState state) {
+			StrideThreadState s = (StrideThreadState) state;
+			if (ready && s.pass - passNow < 0)
+				s.pass = passNow;
+			if (size == heap.length) {
+				StrideThreadState[] bigger = new StrideThreadState[Math.max(
+						initialSize, size * 2)];
+				System.arraycopy(heap, 0, bigger, 0, size);
+				heap = bigger;
+			}
+			s.heapIndex = size++;
+			heap[s.heapIndex] = s;
+			siftUp(s.heapIndex);
+			total += s.effectivePriority;
+		}
+
+		void remove(ThreadState state) {
+			StrideThreadState s = (StrideThreadState) state;
+			int i = s.heapIndex;
+			StrideThreadState last = heap[--size];
+			heap[size] = null;
+			if (i != size) {
+				heap[i] = last;
+				last.heapIndex = i;
+				siftDown(siftUp(i));
+			}
+			s.heapIndex = -1;
+			total -= s.effectivePriority;
+		}
+
+		void reposition(ThreadState state, int effectivePriority) {
+			StrideThreadState s = (StrideThreadState) state;
+			long left = s.pass - passNow;
+			if (ready && left > 0)
+				s.pass = passNow
+						+ (long) ((double) left * strideOf(effectivePriority) / strideOf(s.effectivePriority));
+			total += (long) effectivePriority - s.effectivePriority;
+			s.effectivePriority = effectivePriority;
+			siftDown(siftUp(s.heapIndex));
+		}
+
+		/**
+		 * Donate the tickets of every waiting thread, or -1 if none waits.
+		 */
+		int getDonation() {
+			return size == 0 ? -1 : (int) Math.min(total, priorityMaximum);
+		}
+
+		public int maxPriority() {
+			int max = -1;
+			for (int i = 0; i < size; i++)
+				max = Math.max(max, heap[i].effectivePriority);
+			return max;
+		}
+
+		/**
+		 * Return the thread with the lowest pass. The others follow in heap
+		 * order, not in the order they will be chosen.
+		 */
+		protected ThreadState first() {
+			return pickNextThread();
+		}
+
+		protected ThreadState next(ThreadState state) {
+			int i = ((StrideThreadState) state).heapIndex + 1;
+			return i < size ? heap[i] : null;
+		}
+
+		@Override
+		public boolean isEmtpy() {
+			return size == 0;
+		}
+
+		private boolean before(StrideThreadState a, StrideThreadState b) {
+			long d = a.pass - b.pass;
+			return d < 0 || (d == 0 && a.sequence < b.sequence);
+		}
+
+		private int siftUp(int i) {
+			StrideThreadState s = heap[i];
+			while (i > 0 && before(s, heap[(i - 1) / 2])) {
+				heap[i] = heap[(i - 1) / 2];
+				heap[i].heapIndex = i;
+				i = (i - 1) / 2;
+			}
+			heap[i] = s;
+			s.heapIndex = i;
+			return i;
+		}
+
+		private void siftDown(int i) {
+			StrideThreadState s = heap[i];
+			while (2 * i + 1 < size) {
+				int child = 2 * i + 1;
+				if (child + 1 < size && before(heap[child + 1], heap[child]))
+					child++;
+				if (!before(heap[child], s))
+					break;
+				heap[i] = heap[child];
+				heap[i].heapIndex = i;
+				i = child;
+			}
+			heap[i] = s;
+			s.heapIndex = i;
+		}
+
+		private StrideThreadState[] heap = new StrideThreadState[0];
+		private int size = 0;
+		/** The tickets of all waiting threads. */
+		private long total = 0;
+		/** <tt>true</tt> if this is the ready queue, which charges passes. */
+		private boolean ready;
+		/** The pass of the thread dispatched last, in the ready queue. */
+		private long passNow = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread under stride scheduling.
+	 */
+	protected class StrideThreadState extends LotteryThreadState {
+		public StrideThreadState(KThread thread) {
+			super(thread);
+		}
+
+		/** The pass of this thread. */
+		long pass = 0;
+		/** The index of this thread in the heap of the queue it waits on. */
+		int heapIndex = -1;
+	}
+
+	private static final int initialSize = 16;
+}
@@ -0,0 +1,137 @@
+package nachos.userprog;
+
+import java.util.ArrayList;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+
+/**
+ * A pool of reusable page-sized kernel buffers for syscalls, so that copying
+ * a string or an argument out of a process does not allocate. Each user
+ * thread takes buffers through its own small <tt>Cache</tt> and only goes to
+ * the shared pool when the cache is empty or full.
+ *
+ * <p>
+ * Buffers are handed out dirty; callers must only look at the bytes they
+ * filled.
+ */
+public class BufferPool {
+	/**
+	 * Allocate a new, empty buffer pool.
+	 *
+	 * @param bufferSize
+	 *            the size of every buffer.
+	 * @param maxFree
+	 *            the most free buffers kept; more are left to the garbage
+	 *            collector.
+	 */
+	public BufferPool(int bufferSize, int maxFree) {
+		Lib.assertTrue(bufferSize > 0 && maxFree >= 0);
+		this.bufferSize = bufferSize;
+		this.maxFree = maxFree;
+	}
+
+	/**
+	 * Return the size of every buffer in this pool.
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Take a buffer from the pool, allocating one if the pool is empty.
+	 */
+	public byte[] get() {
+		boolean intStatus = Machine.interrupt().disable();
+		byte[] buf;
+		if (free.isEmpty()) {
+			buf = new byte[bufferSize];
+			numAllocated++;
+		} else {
+			buf = free.remove(free.size() - 1);
+			numReused++;
+		}
+		Machine.interrupt().restore(intStatus);
+		return buf;
+	}
+
+	/**
+	 * Return a buffer to the pool.
+	 */
+	public void put(byte[] buf) {
+		Lib.assertTrue(buf.length == bufferSize);
+		boolean intStatus = Machine.interrupt().disable();
+		if (free.size() < maxFree)
+			free.add(buf);
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Allocate a new, empty cache for one thread.
+	 *
+	 * @param size
+	 *            the most buffers the cache holds.
+	 */
+	public Cache newCache(int size) {
+		return new Cache(size);
+	}
+
+	/**
+	 * Return a one-line summary of the buffers handed out.
+	 */
+	public String getStats() {
+		return "allocated " + numAllocated + ", reused from pool " + numReused
+				+ ", from thread caches " + numCacheHits;
+	}
+
+	/**
+	 * A small stack of buffers owned by one thread. Only that thread uses
+	 * it, so it needs no locking.
+	 */
+	public class Cache {
+		private Cache(int size) {
+			bufs = new byte[size][];
+		}
+
+		/**
+		 * Take a buffer from the cache, or from the pool if the cache is
+		 * empty.
+		 */
+		public byte[] get() {
+			if (count == 0)
+				return BufferPool.this.get();
+			numCacheHits++;
+			byte[] buf = bufs[--count];
+			bufs[count] = null;
+			return buf;
+		}
+
+		/**
+		 * Return a buffer to the cache, or to the pool if the cache is full.
+		 */
+		public void put(byte[] buf) {
+			if (count < bufs.length)
+				bufs[count++] = buf;
+			else
+				BufferPool.this.put(buf);
+		}
+
+		/**
+		 * Give every cached buffer back to the pool. Called when the thread
+		 * finishes.
+		 */
+		public void flush() {
+			while (count > 0) {
+				BufferPool.this.put(bufs[--count]);
+				bufs[count] = null;
+			}
+		}
+
+		private byte[][] bufs;
+		private int count = 0;
+	}
+
+	private int bufferSize, maxFree;
+	private ArrayList<byte[]> free = new ArrayList<byte[]>();
+	private int numAllocated = 0, numReused = 0, numCacheHits = 0;
+}
@@ -33,6 +33,8 @@ public class UserKernel extends ThreadedKernel {
 			phyTable[i]=null;
 		}
 		fdLock = new Lock();
+		bufferPool = new BufferPool(Processor.pageSize,
+				Config.getInteger("UserKernel.bufferPoolSize", 16));
 		fileDescriptors.add(UserKernel.console.openForReading());
 		fileDescriptors.add(UserKernel.console.openForWriting());
 		pidCountLock = new Lock();
@@ -115,9 +117,11 @@ public class UserKernel extends ThreadedKernel {
 	}
 
 	/**
-	 * Terminate this kernel. Never returns.
+	 * Terminate this kernel. Never returns. Prints the kernel buffer
+	 * statistics if the <tt>a</tt> debug flag is set.
 	 */
 	public void terminate() {
+		Lib.debug(dbgProcess, "Kernel buffers: " + bufferPool.getStats());
 		super.terminate();
 	}
 
@@ -131,6 +135,10 @@ public class UserKernel extends ThreadedKernel {
 	public static Lock pidCountLock;
 	public static ArrayList<OpenFile> fileDescriptors=new ArrayList<OpenFile>();
 	public static Lock fdLock;
+	/** The pool of page-sized buffers used by syscalls. */
+	public static BufferPool bufferPool;
 	public static Lock processLock;
 	public static int processCnt;
+
+	private static final char dbgProcess = 'a';
 }
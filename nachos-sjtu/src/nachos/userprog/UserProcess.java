@@ -99,16 +99,22 @@ public class UserProcess {
 	public String readVirtualMemoryString(int vaddr, int maxLength) {
 		Lib.assertTrue(maxLength >= 0);
 
-		byte[] bytes = new byte[maxLength + 1];
+		boolean pooled = maxLength < UserKernel.bufferPool.getBufferSize();
+		byte[] bytes = pooled ? buffers.get() : new byte[maxLength + 1];
 
-		int bytesRead = readVirtualMemory(vaddr, bytes);
+		int bytesRead = readVirtualMemory(vaddr, bytes, 0, maxLength + 1);
 
+		String s = null;
 		for (int length = 0; length < bytesRead; length++) {
-			if (bytes[length] == 0)
-				return new String(bytes, 0, length);
+			if (bytes[length] == 0) {
+				s = new String(bytes, 0, length);
+				break;
+			}
 		}
 
-		return null;
+		if (pooled)
+			buffers.put(bytes);
+		return s;
 	}
 
 	/**
@@ -147,44 +153,100 @@ public class UserProcess {
 		return copyVirtualMemory(vaddr, data, offset, length, true);
 	}
 	
+	/**
+	 * Copy between this process's virtual memory and an array, in either
+	 * direction. Stops at the first page that is not mapped, or, when
+	 * writing, that is read-only.
+	 * 
+	 * @param read
+	 *            <tt>true</tt> to copy from virtual memory to the array.
+	 * @return the number of bytes successfully transferred.
+	 */
 	public int copyVirtualMemory(int vaddr, byte[] data, int offset, int length, boolean read){
-		try{
-			Lib.assertTrue(offset >= 0 && length >= 0
-					&& offset + length <= data.length);
-			Processor p = Machine.processor();
-			byte[] memory  = p.getMemory();
-	
-			if(vaddr < 0)handleException(Processor.exceptionAddressError);
-			int curVpn = Processor.pageFromAddress(vaddr);
-			int curOffset = offset;
-			int tot = 0;
-			int vOffset = Processor.offsetFromAddress(vaddr);
-			while(length > 0){
-				int ppn = pageTable[curVpn].valid? pageTable[curVpn].ppn : -1;
-				ppn = (read||!pageTable[curVpn].readOnly)?ppn:-1;
-				int paddr = Processor.makeAddress(ppn, vOffset); 
-				int amount = Math.min(length, pageSize - vOffset);
-				if (paddr < 0 || paddr >= memory.length || amount < 0)break; 
-				
-				if(read)
-					System.arraycopy(memory, paddr, data, curOffset, amount);
-				else
-					System.arraycopy(data, curOffset, memory, paddr, amount);
-				
-				curOffset += amount;
-				
-				tot += amount;
-				curVpn++;
-				length -= amount;
-				vOffset = 0;
+		Lib.assertTrue(offset >= 0 && length >= 0
+				&& offset + length <= data.length);
+		Processor p = Machine.processor();
+		byte[] memory = p.getMemory();
+
+		int tot = 0;
+		while(tot < length){
+			TranslationEntry e = getEntry(vaddr + tot, !read);
+			if(e == null)break;
+			int vOffset = Processor.offsetFromAddress(vaddr + tot);
+			int paddr = Processor.makeAddress(e.ppn, vOffset);
+			int amount = Math.min(length - tot, pageSize - vOffset);
+
+			if(read)
+				System.arraycopy(memory, paddr, data, offset + tot, amount);
+			else{
+				System.arraycopy(data, offset + tot, memory, paddr, amount);
+				p.invalidateDecodeCache(e.ppn);
+				e.dirty = true;
 			}
-	
-			return tot;
-		} catch (Exception e){
-			return 0;
-		} finally{
-			//do nothing
+			e.used = true;
+			tot += amount;
+		}
+
+		return tot;
+	}
+
+	/**
+	 * Move data between a file and this process's virtual memory, a page at a
+	 * time, straight between the file and physical memory. Stops at the first
+	 * page that is not mapped, or, when reading from the file, that is
+	 * read-only; and at the first short transfer.
+	 * 
+	 * @param file
+	 *            the file.
+	 * @param vaddr
+	 *            the first byte of virtual memory to transfer.
+	 * @param length
+	 *            the number of bytes to transfer.
+	 * @param fromFile
+	 *            <tt>true</tt> to read from the file into virtual memory,
+	 *            <tt>false</tt> to write virtual memory to the file.
+	 * @return the number of bytes transferred, or -1 if the file failed
+	 *         before any were.
+	 */
+	protected int transferFile(OpenFile file, int vaddr, int length, boolean fromFile){
+		Processor p = Machine.processor();
+		byte[] memory = p.getMemory();
+
+		int tot = 0;
+		while(tot < length){
+			TranslationEntry e = getEntry(vaddr + tot, fromFile);
+			if(e == null)break;
+			int vOffset = Processor.offsetFromAddress(vaddr + tot);
+			int paddr = Processor.makeAddress(e.ppn, vOffset);
+			int amount = Math.min(length - tot, pageSize - vOffset);
+
+			int n = fromFile ? file.read(memory, paddr, amount)
+					: file.write(memory, paddr, amount);
+			if(n < 0)
+				return tot > 0 ? tot : -1;
+			if(fromFile){
+				p.invalidateDecodeCache(e.ppn);
+				e.dirty = true;
+			}
+			e.used = true;
+			tot += n;
+			if(n < amount)break;
 		}
+
+		return tot;
+	}
+
+	/**
+	 * Return the valid entry of the page holding a virtual address, or
+	 * <tt>null</tt> if there is none or it is read-only and
+	 * <tt>write</tt> is set.
+	 */
+	private TranslationEntry getEntry(int vaddr, boolean write){
+		int vpn = Processor.pageFromAddress(vaddr);
+		if(vaddr < 0 || vpn >= pageTable.length)return null;
+		TranslationEntry e = pageTable[vpn];
+		if(e == null || !e.valid || (write && e.readOnly))return null;
+		return e;
 	}
 
 	/**
@@ -247,6 +309,7 @@ public class UserProcess {
 
 		try {
 			coff = new Coff(executable);
+			coffName = name;
 		} catch (EOFException e) {
 			executable.close();
 			Lib.debug(dbgProcess, "\tcoff load failed");
@@ -532,6 +595,7 @@ public class UserProcess {
 		try {
 			String name = readVirtualMemoryString(a0,256);
 			if (ThreadedKernel.fileSystem.remove(name)){
+				fileChanged(name);
 				return 0;
 			}else
 				return -1;
@@ -557,35 +621,38 @@ public class UserProcess {
 	}
 
 	private int handleWrite(int a0, int a1, int a2) {
-		try{
-			UserKernel.fdLock.acquire();
-			OpenFile f = UserKernel.fileDescriptors.get(a0);
-			UserKernel.fdLock.release();
-			byte [] buf = new byte[a2];
-			readVirtualMemory(a1,buf);
-			return f.write(buf, 0, a2);
-		} catch (Exception e){
-			return -1;
-		} finally{
-			if(UserKernel.fdLock.isHeldByCurrentThread())
-				UserKernel.fdLock.release();
-		}
+		OpenFile f = getOpenFile(a0);
+		if(f == null || a2 < 0)return -1;
+		fileChanged(f.getName());
+		return transferFile(f, a1, a2, false);
 	}
 
 	private int handleRead(int a0, int a1, int a2) {
-		try{
-			UserKernel.fdLock.acquire();
-			OpenFile f = UserKernel.fileDescriptors.get(a0);
-			UserKernel.fdLock.release();
-			byte [] buf = new byte[a2];
-			int ret = f.read(buf, 0, a2);
-			return Math.min(ret, writeVirtualMemory(a1,buf));
-		} catch (Exception e){
-			return -1;
-		} finally {
-			if(UserKernel.fdLock.isHeldByCurrentThread())
-				UserKernel.fdLock.release();
-		}
+		OpenFile f = getOpenFile(a0);
+		if(f == null || a2 < 0)return -1;
+		return transferFile(f, a1, a2, true);
+	}
+
+	/**
+	 * Called when this process creates, writes or removes a file, before a
+	 * write. Does nothing here; a kernel that caches executables overrides it
+	 * to drop the cached pages of the file.
+	 * 
+	 * @param name
+	 *            the name of the file.
+	 */
+	protected void fileChanged(String name) {
+	}
+
+	/**
+	 * Return the file open on a file descriptor, or <tt>null</tt>.
+	 */
+	private OpenFile getOpenFile(int fd) {
+		UserKernel.fdLock.acquire();
+		OpenFile f = fd >= 0 && fd < UserKernel.fileDescriptors.size()
+				? UserKernel.fileDescriptors.get(fd) : null;
+		UserKernel.fdLock.release();
+		return f;
 	}
 
 	private int handleOpen(int a0) {
@@ -612,6 +679,7 @@ public class UserProcess {
 			String name = readVirtualMemoryString(a0,256);
 			OpenFile h = UserKernel.fileSystem.open(name, true);
 			if(h == null) return -1;
+			fileChanged(name);
 			UserKernel.fdLock.acquire();
 			UserKernel.fileDescriptors.add(h);
 			int ret = UserKernel.fileDescriptors.size()-1;
@@ -640,10 +708,13 @@ public class UserProcess {
 				status = childrenStatus.get(a0);
 			}
 			if(status!=null){
-				if(writeVirtualMemory(a1,Lib.bytesFromInt(status)) == intByteSize){
+				byte [] buf = buffers.get();
+				Lib.bytesFromInt(buf, 0, status);
+				if(writeVirtualMemory(a1, buf, 0, intByteSize) == intByteSize){
 					ret = status.equals(-1)?0:1;
 				}else 
 					ret = 0;
+				buffers.put(buf);
 			}else{
 				ret = 0;
 			}
@@ -654,14 +725,14 @@ public class UserProcess {
 	}
 
 	private int handleExec(int a0, int a1, int a2) {
+		byte [] buf = buffers.get();
 		try{
 			String name = readVirtualMemoryString(a0,256);
 			if(!name.endsWith("coff"))return -1;
 			UserProcess c = newUserProcess();
 			String [] args = new String[a1];
 			for(int i=0;i<a1;i++){
-				byte [] buf = new byte [intByteSize];
-				if(readVirtualMemory(a2 + i*intByteSize, buf) != buf.length){
+				if(readVirtualMemory(a2 + i*intByteSize, buf, 0, intByteSize) != intByteSize){
 					return -1;
 				}
 				int addr = Lib.bytesToInt(buf, 0);
@@ -683,6 +754,7 @@ public class UserProcess {
 			//e.printStackTrace();
 			return -1;
 		} finally {
+			buffers.put(buf);
 			if(childrenLock.isHeldByCurrentThread())
 				childrenLock.release();
 		}
@@ -706,6 +778,7 @@ public class UserProcess {
 		for (Integer i: curfd){
 			handleClose(i);
 		}
+		buffers.flush();
 		
 		UserKernel.processLock.acquire();
 		UserKernel.processCnt--;
@@ -748,7 +821,7 @@ public class UserProcess {
 			Lib.debug(dbgProcess, "SIGKILL exception: "
 					+ Processor.exceptionNames[cause] + " for process " + pid);
 			VMProcess.dumpTLB();
-			VMProcess.dumpPageTable();
+			dumpPageTable();
 			handleExit(-1);
 			break;
 		default:
@@ -759,8 +832,27 @@ public class UserProcess {
 		}
 	}
 
+	/**
+	 * Print this process's valid page table entries to the VM debug output.
+	 */
+	public void dumpPageTable() {
+		Lib.debug(dbgVM, "-----------page table dump---------");
+		if (!Lib.test(dbgVM) || pageTable == null)
+			return;
+		for (TranslationEntry e : pageTable) {
+			if (e != null && e.valid)
+				Lib.debug(dbgVM, pid + "," + e.vpn + ":" + e.ppn
+						+ ", readOnly=" + e.readOnly);
+		}
+	}
+
 	/** The program being run by this process. */
 	protected Coff coff;
+	/** The name of the file holding <tt>coff</tt>. */
+	protected String coffName;
+
+	/** This process's cache of kernel buffers; it has a single thread. */
+	private BufferPool.Cache buffers = UserKernel.bufferPool.newCache(2);
 
 	/** This process's page table. */
 	protected TranslationEntry[] pageTable;
@@ -775,6 +867,7 @@ public class UserProcess {
 
 	private static final int pageSize = Processor.pageSize;
 	private static final char dbgProcess = 'a';
+	private static final char dbgVM = 'v';
 	private static final int intByteSize = 4;
 	
 	public ArrayList<Integer> curfd = new ArrayList<Integer> ();
@@ -0,0 +1,56 @@
+package nachos.vm;
+
+import nachos.machine.Machine;
+import nachos.machine.TranslationEntry;
+
+/**
+ * An approximation of LRU using aging counters. Each frame keeps an 8-bit
+ * history of its used bit. Every time a victim is needed the counters are
+ * shifted right, the used bit is shifted in at the top and cleared, and the
+ * frame with the smallest counter is evicted.
+ * 
+ * <p>
+ * The counters age once per replacement rather than once per timer tick,
+ * which makes the history follow the fault rate instead of wall time.
+ */
+public class AgingPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new aging policy.
+	 */
+	public AgingPolicy() {
+		numPhysPages = Machine.processor().getNumPhysPages();
+		age = new int[numPhysPages];
+	}
+
+	public void pageLoaded(int ppn) {
+		// a new page counts as just referenced
+		age[ppn] = topBit;
+	}
+
+	public int findVictim(VMKernel kernel) {
+		int victim = -1;
+		for (int ppn = 0; ppn < numPhysPages; ppn++) {
+			if (!kernel.isEvictable(ppn))
+				continue;
+			TranslationEntry e = kernel.getEntry(ppn);
+
+			age[ppn] >>>= 1;
+			if (e.used)
+				age[ppn] |= topBit;
+			e.used = false;
+
+			if (victim < 0 || age[ppn] < age[victim])
+				victim = ppn;
+		}
+		return victim;
+	}
+
+	public String getName() {
+		return "aging";
+	}
+
+	private static final int topBit = 0x80;
+
+	private int numPhysPages;
+	private int[] age;
+}
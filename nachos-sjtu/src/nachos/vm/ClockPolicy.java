@@ -0,0 +1,44 @@
+package nachos.vm;
+
+import nachos.machine.Machine;
+import nachos.machine.TranslationEntry;
+
+/**
+ * The second-chance algorithm. A hand sweeps the frames in order; a frame
+ * whose used bit is set has it cleared and is skipped, and the first frame
+ * found with the bit clear is evicted.
+ */
+public class ClockPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new clock policy.
+	 */
+	public ClockPolicy() {
+		numPhysPages = Machine.processor().getNumPhysPages();
+	}
+
+	public void pageLoaded(int ppn) {
+	}
+
+	public int findVictim(VMKernel kernel) {
+		// after one full sweep every used bit is clear
+		for (int i = 0; i < 2 * numPhysPages; i++) {
+			int ppn = hand;
+			hand = (hand + 1) % numPhysPages;
+
+			if (!kernel.isEvictable(ppn))
+				continue;
+			TranslationEntry e = kernel.getEntry(ppn);
+			if (!e.used)
+				return ppn;
+			e.used = false;
+		}
+		return -1;
+	}
+
+	public String getName() {
+		return "clock";
+	}
+
+	private int numPhysPages;
+	private int hand = 0;
+}
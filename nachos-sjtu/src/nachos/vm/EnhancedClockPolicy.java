@@ -0,0 +1,72 @@
+package nachos.vm;
+
+import nachos.machine.Machine;
+import nachos.machine.TranslationEntry;
+
+/**
+ * The clock algorithm over (used, dirty) classes. Clean unused frames go
+ * first, then dirty unused frames, so a write to swap is only paid for when
+ * every recently unused frame is dirty.
+ * 
+ * <p>
+ * The hand first sweeps for a frame that is neither used nor dirty. If there
+ * is none, it sweeps again for an unused dirty frame, clearing used bits as
+ * it passes. The two sweeps repeat until a victim is found, which takes at
+ * most two rounds.
+ */
+public class EnhancedClockPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new enhanced clock policy.
+	 */
+	public EnhancedClockPolicy() {
+		numPhysPages = Machine.processor().getNumPhysPages();
+	}
+
+	public void pageLoaded(int ppn) {
+	}
+
+	public int findVictim(VMKernel kernel) {
+		for (int round = 0; round < 2; round++) {
+			int ppn = sweep(kernel, false);
+			if (ppn >= 0)
+				return ppn;
+
+			ppn = sweep(kernel, true);
+			if (ppn >= 0)
+				return ppn;
+		}
+		return -1;
+	}
+
+	/**
+	 * Move the hand once around the frames.
+	 * 
+	 * @param dirtyClass
+	 *            <tt>false</tt> to look for a clean unused frame,
+	 *            <tt>true</tt> to look for a dirty unused frame and clear the
+	 *            used bits passed over.
+	 * @return the victim, or -1 if the sweep found none.
+	 */
+	private int sweep(VMKernel kernel, boolean dirtyClass) {
+		for (int i = 0; i < numPhysPages; i++) {
+			int ppn = hand;
+			hand = (hand + 1) % numPhysPages;
+
+			if (!kernel.isEvictable(ppn))
+				continue;
+			TranslationEntry e = kernel.getEntry(ppn);
+			if (!e.used && e.dirty == dirtyClass)
+				return ppn;
+			if (dirtyClass)
+				e.used = false;
+		}
+		return -1;
+	}
+
+	public String getName() {
+		return "enhanced-clock";
+	}
+
+	private int numPhysPages;
+	private int hand = 0;
+}
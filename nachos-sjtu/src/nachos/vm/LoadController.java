@@ -0,0 +1,169 @@
+package nachos.vm;
+
+import java.util.LinkedList;
+
+import nachos.machine.Config;
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.threads.Condition;
+import nachos.threads.ThreadedKernel;
+
+/**
+ * Page-fault-frequency load control. A kernel thread wakes up every
+ * <tt>VMKernel.pffInterval</tt> ticks. It samples the used bits of every
+ * process to estimate its working set: the pages it referenced during the
+ * last <tt>VMKernel.workingSetWindow</tt> samples. It also counts the page
+ * faults since the previous sample.
+ *
+ * <p>
+ * More than <tt>VMKernel.pffHigh</tt> faults means memory is overcommitted.
+ * The lowest-priority running process is then suspended and all its pages
+ * are evicted, so the others get its frames. The oldest suspended process is
+ * resumed when there are fewer than <tt>VMKernel.pffLow</tt> faults, or when
+ * there are not too many and its working set fits in memory next to the
+ * others'. The last running process is never suspended.
+ *
+ * <p>
+ * A suspended process stops at its next exception or syscall. Since its
+ * pages are gone, that is its next memory access.
+ */
+public class LoadController implements Runnable {
+	/**
+	 * Allocate a new load controller.
+	 *
+	 * @param kernel
+	 *            the kernel whose processes it controls.
+	 */
+	public LoadController(VMKernel kernel) {
+		this.kernel = kernel;
+		interval = Config.getInteger("VMKernel.pffInterval");
+		high = Config.getInteger("VMKernel.pffHigh", 20);
+		low = Config.getInteger("VMKernel.pffLow", 5);
+		window = Config.getInteger("VMKernel.workingSetWindow", 4);
+		Lib.assertTrue(interval > 0 && low <= high && window > 0,
+				"bad VMKernel.pff settings");
+		resumed = new Condition(kernel.frameLock);
+	}
+
+	/**
+	 * Sample and control the load forever. Run by a kernel thread.
+	 */
+	public void run() {
+		while (true) {
+			ThreadedKernel.alarm.waitUntil(interval);
+			kernel.frameLock.acquire();
+			control();
+			kernel.frameLock.release();
+		}
+	}
+
+	/**
+	 * Wait while a process is suspended. Called with <tt>frameLock</tt>
+	 * held.
+	 */
+	public void waitIfSuspended(VMProcess process) {
+		while (process.suspended)
+			resumed.sleep();
+	}
+
+	/**
+	 * Forget an exiting process. If it was the last one running, resume a
+	 * suspended one at once. Called with <tt>frameLock</tt> held.
+	 */
+	public void processExited(VMProcess process) {
+		suspended.remove(process);
+		if (!suspended.isEmpty() && numRunning() == 0)
+			resume(suspended.getFirst());
+	}
+
+	/**
+	 * Return a one-line summary of what the controller did.
+	 */
+	public String getStats() {
+		return "samples " + numSamples + ", suspends " + numSuspends
+				+ ", resumes " + numResumes + ", pages reclaimed "
+				+ numReclaimed + ", peak working set " + peakWorkingSet;
+	}
+
+	private void control() {
+		numSamples++;
+		kernel.syncTLB();
+
+		int total = 0;
+		for (VMProcess p : kernel.processes) {
+			if (p.suspended)
+				continue;
+			int ws = p.sampleWorkingSet(numSamples, window);
+			peakWorkingSet = Math.max(peakWorkingSet, ws);
+			total += ws;
+		}
+
+		int faults = kernel.numPageFaults - lastFaults;
+		lastFaults = kernel.numPageFaults;
+
+		if (faults > high && numRunning() > 1) {
+			suspend(chooseVictim());
+		} else if (faults <= high && !suspended.isEmpty()) {
+			VMProcess p = suspended.getFirst();
+			if (faults < low
+					|| total + p.workingSet <= Machine.processor().getNumPhysPages())
+				resume(p);
+		}
+	}
+
+	private int numRunning() {
+		return kernel.processes.size() - suspended.size();
+	}
+
+	/**
+	 * Return the running process with the lowest priority, the youngest
+	 * among equals.
+	 */
+	private VMProcess chooseVictim() {
+		VMProcess victim = null;
+		int victimPriority = 0;
+
+		boolean intStatus = Machine.interrupt().disable();
+		for (VMProcess p : kernel.processes) {
+			if (p.suspended || p.thread == null)
+				continue;
+			int priority = ThreadedKernel.scheduler.getPriority(p.thread);
+			if (victim == null || priority < victimPriority
+					|| (priority == victimPriority && p.pid > victim.pid)) {
+				victim = p;
+				victimPriority = priority;
+			}
+		}
+		Machine.interrupt().restore(intStatus);
+		return victim;
+	}
+
+	private void suspend(VMProcess process) {
+		if (process == null)
+			return;
+		Lib.debug(dbgVM, "suspending process " + process.pid
+				+ ", working set " + process.workingSet);
+		process.suspended = true;
+		suspended.add(process);
+		numSuspends++;
+		numReclaimed += process.evictAll();
+	}
+
+	private void resume(VMProcess process) {
+		Lib.debug(dbgVM, "resuming process " + process.pid);
+		process.suspended = false;
+		suspended.remove(process);
+		numResumes++;
+		resumed.wakeAll();
+	}
+
+	private static final char dbgVM = 'v';
+
+	private VMKernel kernel;
+	private int interval, high, low, window;
+	private Condition resumed;
+	private LinkedList<VMProcess> suspended = new LinkedList<VMProcess>();
+	private int lastFaults = 0;
+	private int numSamples = 0, numSuspends = 0, numResumes = 0;
+	private int numReclaimed = 0, peakWorkingSet = 0;
+}
@@ -0,0 +1,112 @@
+package nachos.vm;
+
+import java.util.Arrays;
+
+import nachos.machine.Lib;
+import nachos.machine.OpenFile;
+import nachos.machine.Processor;
+import nachos.machine.TranslationEntry;
+
+/**
+ * A file mapped into the address space of a process by <tt>mmap()</tt>. Its
+ * pages are faulted in from the file and dirty pages are written back to the
+ * file, never to swap.
+ *
+ * <p>
+ * The map has its own handle on the file, so it does not depend on the file
+ * descriptor it was made from. The file does not grow: the part of the last
+ * page beyond the end of the file reads as zeros and is not written back.
+ */
+public class MappedFile {
+	/**
+	 * Map a file at a virtual page.
+	 *
+	 * @param file
+	 *            the file, which now belongs to the map.
+	 * @param fd
+	 *            the file descriptor the map was made from.
+	 * @param firstVpn
+	 *            the virtual page the file starts at.
+	 * @param length
+	 *            the length of the file in bytes.
+	 */
+	public MappedFile(OpenFile file, int fd, int firstVpn, int length) {
+		Lib.assertTrue(firstVpn >= 0 && length >= 0);
+
+		this.file = file;
+		this.fd = fd;
+		this.firstVpn = firstVpn;
+		this.length = length;
+		numPages = (length + pageSize - 1) / pageSize;
+		entries = new TranslationEntry[numPages];
+	}
+
+	/**
+	 * Test whether a virtual page lies in this map.
+	 */
+	public boolean contains(int vpn) {
+		return vpn >= firstVpn && vpn < firstVpn + numPages;
+	}
+
+	/**
+	 * Test whether this map overlaps a range of virtual pages.
+	 */
+	public boolean overlaps(int vpn, int pages) {
+		return vpn < firstVpn + numPages && firstVpn < vpn + pages;
+	}
+
+	/**
+	 * Fill a frame with a page of the file. Blocks on the file.
+	 */
+	public void readPage(int vpn, byte[] memory, int paddr) {
+		int length = bytesIn(vpn);
+		int read = file.read(offsetOf(vpn), memory, paddr, length);
+		Arrays.fill(memory, paddr + Math.max(read, 0), paddr + pageSize,
+				(byte) 0);
+	}
+
+	/**
+	 * Write a frame back to its page of the file. Blocks on the file.
+	 */
+	public void writePage(int vpn, byte[] memory, int paddr) {
+		int length = bytesIn(vpn);
+		Lib.assertTrue(file.write(offsetOf(vpn), memory, paddr, length) == length);
+	}
+
+	/**
+	 * Return the name of the file.
+	 */
+	public String getName() {
+		return file.getName();
+	}
+
+	/**
+	 * Close the file. Every page must have been written back.
+	 */
+	public void close() {
+		file.close();
+	}
+
+	private int offsetOf(int vpn) {
+		Lib.assertTrue(contains(vpn));
+		return (vpn - firstVpn) * pageSize;
+	}
+
+	private int bytesIn(int vpn) {
+		return Math.min(pageSize, length - offsetOf(vpn));
+	}
+
+	private static final int pageSize = Processor.pageSize;
+
+	/** The file descriptor the map was made from. */
+	public final int fd;
+	/** The first virtual page of the map. */
+	public final int firstVpn;
+	/** The number of virtual pages in the map. */
+	public final int numPages;
+	/** The entries of the pages, indexed from <tt>firstVpn</tt>. */
+	public final TranslationEntry[] entries;
+
+	private OpenFile file;
+	private int length;
+}
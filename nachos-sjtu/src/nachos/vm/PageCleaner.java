@@ -0,0 +1,81 @@
+package nachos.vm;
+
+import nachos.machine.Config;
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.threads.Condition;
+
+/**
+ * The page daemon. A kernel thread that keeps a pool of free frames, so that
+ * a page fault usually finds a free frame and only has to read its page in,
+ * instead of first writing a dirty victim to swap.
+ *
+ * <p>
+ * When a frame is taken and fewer than <tt>VMKernel.cleanerLowWater</tt>
+ * frames are left free, the daemon is woken. It evicts the pages the
+ * replacement policy chooses, writing the dirty ones back, until
+ * <tt>VMKernel.cleanerHighWater</tt> frames are free or nothing more can be
+ * evicted.
+ */
+public class PageCleaner implements Runnable {
+	/**
+	 * Allocate a new page daemon.
+	 *
+	 * @param kernel
+	 *            the kernel whose frames it keeps free.
+	 */
+	public PageCleaner(VMKernel kernel) {
+		this.kernel = kernel;
+		int numPhysPages = Machine.processor().getNumPhysPages();
+		lowWater = Config.getInteger("VMKernel.cleanerLowWater");
+		highWater = Config.getInteger("VMKernel.cleanerHighWater",
+				Math.min(lowWater * 2, numPhysPages / 2));
+		Lib.assertTrue(lowWater > 0 && lowWater <= highWater
+				&& highWater < numPhysPages, "bad VMKernel.cleaner settings");
+		wanted = new Condition(kernel.frameLock);
+	}
+
+	/**
+	 * Keep frames free forever. Run by a kernel thread.
+	 */
+	public void run() {
+		kernel.frameLock.acquire();
+		while (true) {
+			while (kernel.getNumFreeFrames() >= lowWater)
+				wanted.sleep();
+			numRuns++;
+			while (kernel.getNumFreeFrames() < highWater) {
+				int ppn = kernel.chooseVictim();
+				if (ppn < 0)
+					break;
+				kernel.reclaim(ppn);
+				numReclaimed++;
+			}
+			// if every frame was pinned, wait for the next request
+			if (kernel.getNumFreeFrames() < lowWater)
+				wanted.sleep();
+		}
+	}
+
+	/**
+	 * Note that a frame has been taken, waking the daemon if too few are
+	 * left free. Called with <tt>frameLock</tt> held.
+	 */
+	public void frameTaken() {
+		if (kernel.getNumFreeFrames() < lowWater)
+			wanted.wake();
+	}
+
+	/**
+	 * Return a one-line summary of what the daemon did.
+	 */
+	public String getStats() {
+		return "watermarks " + lowWater + "/" + highWater + ", runs " + numRuns
+				+ ", pages reclaimed " + numReclaimed;
+	}
+
+	private VMKernel kernel;
+	private int lowWater, highWater;
+	private Condition wanted;
+	private int numRuns = 0, numReclaimed = 0;
+}
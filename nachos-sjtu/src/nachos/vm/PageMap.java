@@ -0,0 +1,223 @@
+package nachos.vm;
+
+import java.util.Arrays;
+
+import nachos.machine.Lib;
+
+/**
+ * A hash map from virtual pages to values, keyed by the primitive
+ * <tt>(pid &lt;&lt; 32) | vpn</tt>. Used for the inverted page table and the
+ * swap index, where looking a page up must not allocate.
+ *
+ * <p>
+ * Keys and values live in parallel arrays with linear probing. A slot is free
+ * when its value is <tt>null</tt>, so <tt>null</tt> values cannot be stored.
+ * Removal shifts the rest of the probe run back instead of leaving
+ * tombstones, so lookups never get slower as pages come and go.
+ *
+ * <p>
+ * The slots can be walked with <tt>capacity()</tt>, <tt>keyAt()</tt> and
+ * <tt>valueAt()</tt>. The map must not be changed during such a walk.
+ */
+public class PageMap<V> {
+	/**
+	 * Allocate a new, empty page map.
+	 */
+	public PageMap() {
+		this(16);
+	}
+
+	/**
+	 * Allocate a new, empty page map with room for the specified number of
+	 * pages before it has to grow.
+	 *
+	 * @param expected
+	 *            the number of pages expected.
+	 */
+	@SuppressWarnings("unchecked")
+	public PageMap(int expected) {
+		Lib.assertTrue(expected >= 0);
+
+		int capacity = Integer.highestOneBit(Math.max(expected * 2 - 1, 15)) * 2;
+		keys = new long[capacity];
+		values = (V[]) new Object[capacity];
+	}
+
+	/**
+	 * Return the key of a page.
+	 *
+	 * @param pid
+	 *            the process the page belongs to.
+	 * @param vpn
+	 *            the virtual page number.
+	 * @return the key.
+	 */
+	public static long key(int pid, int vpn) {
+		return ((long) pid << 32) | (vpn & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Return the process id stored in a key.
+	 */
+	public static int pidFromKey(long key) {
+		return (int) (key >>> 32);
+	}
+
+	/**
+	 * Return the virtual page number stored in a key.
+	 */
+	public static int vpnFromKey(long key) {
+		return (int) key;
+	}
+
+	/**
+	 * Return the value for a page, or <tt>null</tt> if there is none.
+	 */
+	public V get(int pid, int vpn) {
+		return get(key(pid, vpn));
+	}
+
+	/**
+	 * Return the value for a key, or <tt>null</tt> if there is none.
+	 */
+	public V get(long key) {
+		int mask = keys.length - 1;
+		for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+			V value = values[i];
+			if (value == null || keys[i] == key)
+				return value;
+		}
+	}
+
+	/**
+	 * Test whether a key has a value.
+	 */
+	public boolean containsKey(long key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * Set the value for a key.
+	 *
+	 * @return the previous value, or <tt>null</tt> if there was none.
+	 */
+	public V put(long key, V value) {
+		Lib.assertTrue(value != null);
+
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		for (; values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				V old = values[i];
+				values[i] = value;
+				return old;
+			}
+		}
+
+		keys[i] = key;
+		values[i] = value;
+		if (++size * 2 > keys.length)
+			resize(keys.length * 2);
+		return null;
+	}
+
+	/**
+	 * Remove the value for a key.
+	 *
+	 * @return the value removed, or <tt>null</tt> if there was none.
+	 */
+	public V remove(long key) {
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		for (; values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key)
+				break;
+		}
+
+		V old = values[i];
+		if (old == null)
+			return null;
+
+		// pull later entries of the run back over the hole
+		int hole = i;
+		for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+			int home = hash(keys[j]) & mask;
+			if (((j - home) & mask) >= ((j - hole) & mask)) {
+				keys[hole] = keys[j];
+				values[hole] = values[j];
+				hole = j;
+			}
+		}
+		values[hole] = null;
+		size--;
+		return old;
+	}
+
+	/**
+	 * Return the number of pages in this map.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Remove every page from this map.
+	 */
+	public void clear() {
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	/**
+	 * Return the number of slots, for walking the map with <tt>keyAt()</tt>
+	 * and <tt>valueAt()</tt>.
+	 */
+	public int capacity() {
+		return keys.length;
+	}
+
+	/**
+	 * Return the key in a slot. Only meaningful if <tt>valueAt(slot)</tt> is
+	 * not <tt>null</tt>.
+	 */
+	public long keyAt(int slot) {
+		return keys[slot];
+	}
+
+	/**
+	 * Return the value in a slot, or <tt>null</tt> if the slot is free.
+	 */
+	public V valueAt(int slot) {
+		return values[slot];
+	}
+
+	@SuppressWarnings("unchecked")
+	private void resize(int capacity) {
+		long[] oldKeys = keys;
+		V[] oldValues = values;
+
+		keys = new long[capacity];
+		values = (V[]) new Object[capacity];
+
+		int mask = capacity - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldValues[j] == null)
+				continue;
+
+			int i = hash(oldKeys[j]) & mask;
+			while (values[i] != null)
+				i = (i + 1) & mask;
+			keys[i] = oldKeys[j];
+			values[i] = oldValues[j];
+		}
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h >>> 32);
+	}
+
+	private long[] keys;
+	private V[] values;
+	private int size = 0;
+}
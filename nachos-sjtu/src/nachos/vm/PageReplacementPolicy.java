@@ -0,0 +1,45 @@
+package nachos.vm;
+
+/**
+ * Chooses which physical page <tt>VMKernel.swapOut()</tt> evicts when every
+ * frame is in use. The policy is named by the <tt>nachos.conf</tt> key
+ * <tt>VMKernel.replacementPolicy</tt>.
+ * 
+ * <p>
+ * Before a victim is picked, the kernel folds the used and dirty bits of the
+ * TLB back into the page entries and clears the used bits in the TLB, so a
+ * policy only needs to look at <tt>VMKernel.getEntry()</tt>.
+ * 
+ * @see nachos.vm.ClockPolicy
+ * @see nachos.vm.EnhancedClockPolicy
+ * @see nachos.vm.AgingPolicy
+ * @see nachos.vm.RandomPolicy
+ */
+public interface PageReplacementPolicy {
+	/**
+	 * Called when a page has been placed in the specified frame.
+	 * 
+	 * @param ppn
+	 *            the frame that was filled.
+	 */
+	public void pageLoaded(int ppn);
+
+	/**
+	 * Choose a frame to evict. Frames that are pinned or have no entry (see
+	 * <tt>VMKernel.isEvictable()</tt>) must not be chosen. Called with
+	 * <tt>VMKernel.frameLock</tt> held.
+	 * 
+	 * @param kernel
+	 *            the kernel whose frames are being replaced.
+	 * @return the physical page number of the victim, or -1 if no frame can
+	 *         be evicted.
+	 */
+	public int findVictim(VMKernel kernel);
+
+	/**
+	 * Return the short name of this policy, used in the paging statistics.
+	 * 
+	 * @return the name of this policy.
+	 */
+	public String getName();
+}
@@ -0,0 +1,35 @@
+package nachos.vm;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+
+/**
+ * Evicts a frame chosen uniformly at random.
+ */
+public class RandomPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new random policy.
+	 */
+	public RandomPolicy() {
+		numPhysPages = Machine.processor().getNumPhysPages();
+	}
+
+	public void pageLoaded(int ppn) {
+	}
+
+	public int findVictim(VMKernel kernel) {
+		int start = Lib.random(numPhysPages);
+		for (int i = 0; i < numPhysPages; i++) {
+			int ppn = (start + i) % numPhysPages;
+			if (kernel.isEvictable(ppn))
+				return ppn;
+		}
+		return -1;
+	}
+
+	public String getName() {
+		return "random";
+	}
+
+	private int numPhysPages;
+}
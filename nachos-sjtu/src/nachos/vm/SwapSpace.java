@@ -0,0 +1,265 @@
+package nachos.vm;
+
+import java.util.BitSet;
+
+import nachos.machine.Lib;
+import nachos.machine.OpenFile;
+import nachos.machine.Processor;
+
+/**
+ * The swap file, divided into page-sized slots. A bitmap records which slots
+ * are in use, and each used slot remembers the page it holds so that slots
+ * can be moved.
+ *
+ * <p>
+ * Slots are handed out in runs, so that a cluster of pages can be written
+ * with a single <tt>write()</tt>. A page whose predecessor in the same
+ * process already has a slot is placed right after it when that slot is
+ * free, which keeps a process's pages together in the file.
+ *
+ * <p>
+ * The file never shrinks, but when fewer than a quarter of the slots below
+ * the highest used one are in use, <tt>shouldCompact()</tt> says so and
+ * <tt>compact()</tt> moves the used slots to the front of the file so that
+ * it stops growing.
+ *
+ * <p>
+ * This class does no locking. <tt>read()</tt> and <tt>write()</tt> block on
+ * the file and may be called without the caller's lock, as long as the slots
+ * they use stay allocated and <tt>compact()</tt> is not running.
+ */
+public class SwapSpace {
+	/**
+	 * Allocate a new swap space backed by the specified file.
+	 *
+	 * @param file
+	 *            the swap file.
+	 */
+	public SwapSpace(OpenFile file) {
+		this.file = file;
+	}
+
+	/**
+	 * Return the slot holding a page, or -1 if the page is not in swap.
+	 */
+	public int getSlot(long key) {
+		Integer slot = slots.get(key);
+		return slot == null ? -1 : slot;
+	}
+
+	/**
+	 * Give the pages contiguous slots, in order. Pages that already have such
+	 * slots keep them; otherwise their old slots are released and a new run
+	 * is allocated.
+	 *
+	 * @param keys
+	 *            the pages, in the order they will be written.
+	 * @param n
+	 *            the number of pages in <tt>keys</tt> to place.
+	 * @return the first slot of the run.
+	 */
+	public int allocate(long[] keys, int n) {
+		Lib.assertTrue(n > 0 && n <= keys.length);
+
+		int first = getSlot(keys[0]);
+		boolean inPlace = first >= 0;
+		for (int i = 1; i < n && inPlace; i++)
+			inPlace = getSlot(keys[i]) == first + i;
+		if (inPlace)
+			return first;
+
+		for (int i = 0; i < n; i++)
+			freePage(keys[i]);
+
+		first = findRun(hint(keys[0]), n);
+		for (int i = 0; i < n; i++) {
+			used.set(first + i);
+			owners[first + i] = keys[i];
+			slots.put(keys[i], first + i);
+		}
+		inUse += n;
+		peak = Math.max(peak, inUse);
+		return first;
+	}
+
+	/**
+	 * Write pages to consecutive slots with one write to the swap file.
+	 *
+	 * @param slot
+	 *            the first slot.
+	 * @param buf
+	 *            the buffer holding the pages.
+	 * @param offset
+	 *            the offset of the first page in <tt>buf</tt>.
+	 * @param pages
+	 *            the number of pages to write.
+	 */
+	public void write(int slot, byte[] buf, int offset, int pages) {
+		Lib.assertTrue(slot >= 0 && slot + pages <= used.length());
+
+		int length = pages * pageSize;
+		Lib.assertTrue(file.write(slot * pageSize, buf, offset, length) == length);
+		numWrites++;
+		numPagesWritten += pages;
+	}
+
+	/**
+	 * Read a page from a slot.
+	 *
+	 * @param slot
+	 *            the slot, as returned by <tt>getSlot()</tt>.
+	 */
+	public void read(int slot, byte[] buf, int offset) {
+		read(slot, buf, offset, 1);
+	}
+
+	/**
+	 * Read pages from consecutive slots with one read from the swap file.
+	 *
+	 * @param slot
+	 *            the first slot.
+	 * @param pages
+	 *            the number of pages to read.
+	 */
+	public void read(int slot, byte[] buf, int offset, int pages) {
+		Lib.assertTrue(pages > 0 && used.get(slot) && used.get(slot + pages - 1));
+
+		int length = pages * pageSize;
+		Lib.assertTrue(file.read(slot * pageSize, buf, offset, length) == length);
+	}
+
+	/**
+	 * Release the slot of a page, if it has one.
+	 */
+	public void freePage(long key) {
+		Integer slot = slots.remove(key);
+		if (slot == null)
+			return;
+
+		used.clear(slot);
+		inUse--;
+	}
+
+	/**
+	 * Test whether the swap file has become mostly empty.
+	 */
+	public boolean shouldCompact() {
+		return used.length() >= minCompactSlots && inUse * 4 < used.length();
+	}
+
+	/**
+	 * Move every used slot above the first free one down into a free slot, so
+	 * the used slots form a prefix of the file.
+	 */
+	public void compact() {
+		byte[] buf = new byte[pageSize];
+
+		for (int top = used.length() - 1, hole = used.nextClearBit(0); hole < top; top = used
+				.length() - 1, hole = used.nextClearBit(hole)) {
+			long key = owners[top];
+
+			Lib.assertTrue(file.read(top * pageSize, buf, 0, pageSize) == pageSize);
+			Lib.assertTrue(file.write(hole * pageSize, buf, 0, pageSize) == pageSize);
+
+			used.clear(top);
+			used.set(hole);
+			owners[hole] = key;
+			slots.put(key, hole);
+			numSlotsMoved++;
+		}
+		numCompactions++;
+	}
+
+	/**
+	 * Return the number of slots holding a page.
+	 */
+	public int getSlotsInUse() {
+		return inUse;
+	}
+
+	/**
+	 * Return the number of slots up to and including the highest one in use.
+	 */
+	public int getSize() {
+		return used.length();
+	}
+
+	/**
+	 * Return the number of runs of free slots below the highest used slot. A
+	 * compact swap file has none.
+	 */
+	public int getFreeRuns() {
+		int runs = 0;
+		for (int i = used.nextClearBit(0); i < used.length(); i = used
+				.nextClearBit(used.nextSetBit(i)))
+			runs++;
+		return runs;
+	}
+
+	/**
+	 * Return a one-line summary of swap usage.
+	 */
+	public String getStats() {
+		return "slots in use " + inUse + " of " + getSize() + ", peak " + peak
+				+ ", free runs " + getFreeRuns() + ", writes " + numWrites
+				+ " (" + numPagesWritten + " pages), compactions "
+				+ numCompactions + " (" + numSlotsMoved + " slots moved)";
+	}
+
+	/**
+	 * Return the slot just after the one holding the previous page of the same
+	 * process, or 0.
+	 */
+	private int hint(long key) {
+		int vpn = PageMap.vpnFromKey(key);
+		if (vpn == 0)
+			return 0;
+
+		int prev = getSlot(PageMap.key(PageMap.pidFromKey(key), vpn - 1));
+		return prev < 0 ? 0 : prev + 1;
+	}
+
+	/**
+	 * Find <i>n</i> free slots in a row, trying <i>hint</i> first, then the
+	 * first fit, and finally the end of the file.
+	 */
+	private int findRun(int hint, int n) {
+		int first = -1;
+		if (isFree(hint, n))
+			first = hint;
+		else {
+			for (int i = used.nextClearBit(0); i < used.length(); i = used
+					.nextClearBit(i + 1)) {
+				if (isFree(i, n)) {
+					first = i;
+					break;
+				}
+			}
+		}
+		if (first < 0)
+			first = used.length();
+
+		if (first + n > owners.length) {
+			long[] grown = new long[Math.max(owners.length * 2, first + n)];
+			System.arraycopy(owners, 0, grown, 0, owners.length);
+			owners = grown;
+		}
+		return first;
+	}
+
+	private boolean isFree(int first, int n) {
+		int next = used.nextSetBit(first);
+		return next < 0 || next >= first + n;
+	}
+
+	private static final int pageSize = Processor.pageSize;
+	private static final int minCompactSlots = 16;
+
+	private OpenFile file;
+	private BitSet used = new BitSet();
+	private long[] owners = new long[64];
+	private PageMap<Integer> slots = new PageMap<Integer>();
+	private int inUse = 0, peak = 0;
+	private int numWrites = 0, numPagesWritten = 0;
+	private int numCompactions = 0, numSlotsMoved = 0;
+}
@@ -1,9 +1,13 @@
 package nachos.vm;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
 
+import nachos.threads.Condition;
+import nachos.threads.KThread;
+import nachos.threads.Lock;
 import nachos.userprog.UserKernel;
+import nachos.machine.Config;
 import nachos.machine.Lib;
 import nachos.machine.Machine;
 import nachos.machine.OpenFile;
@@ -12,6 +16,33 @@ import nachos.machine.TranslationEntry;
 
 /**
  * A kernel that can support multiple demand-paging user processes.
+ * 
+ * <p>
+ * The frame table, the inverted page table, the swap map and the replacement
+ * policy are guarded by <tt>frameLock</tt>, which is never held across I/O.
+ * A frame that is being filled or written out is pinned, so the replacement
+ * policy passes it over, and the pages being written out are marked in
+ * transit, so their owner waits for the write before faulting them back in.
+ *
+ * <p>
+ * Pages of read-only and initialized COFF sections are not owned by a process.
+ * They are kept in a shared page cache keyed by executable and page, so every
+ * process running the same executable maps the same frame, and a page stays
+ * cached after its last process exits until the replacement policy takes its
+ * frame. Such a page is held in <tt>phyTable</tt> and <tt>ipTable</tt> under
+ * the negative owner returned by <tt>getSharedOwner()</tt>, and its
+ * <tt>VMPage</tt> counts the processes mapping it. Shared pages always hold
+ * the contents of the executable and are mapped read-only: a process that
+ * writes to a page of an initialized data section gets a private copy. They
+ * are never written to swap, but read from the executable again after they
+ * are evicted. A file that is created, written or removed gets a new owner
+ * the next time it is run, so a replaced executable is never served the
+ * pages of the file it replaced.
+ *
+ * <p>
+ * Pages of files mapped with <tt>mmap()</tt> belong to their process, but
+ * their <tt>VMPage</tt> names the <tt>MappedFile</tt>, and they are written
+ * back to the file instead of to swap.
  */
 public class VMKernel extends UserKernel {
 	/**
@@ -28,7 +59,22 @@ public class VMKernel extends UserKernel {
 	public void initialize(String[] args) {
 		super.initialize(args);
 		swapFile = fileSystem.open(swapFileName,true);
-//		swapLock = new Lock();
+		swap = new SwapSpace(swapFile);
+		swapCluster = Config.getInteger("VMKernel.swapCluster", 4);
+		Lib.assertTrue(swapCluster > 0, "bad VMKernel.swapCluster");
+		readAhead = Config.getInteger("VMKernel.readAhead", 0);
+		Lib.assertTrue(readAhead >= 0, "bad VMKernel.readAhead");
+		useASID = Config.getBoolean("VMKernel.useASID", true);
+		replacementPolicy = (PageReplacementPolicy) Lib.constructObject(Config
+				.getString("VMKernel.replacementPolicy", "nachos.vm.ClockPolicy"));
+		frameLock = new Lock();
+		pagingDone = new Condition(frameLock);
+		pinCount = new int[Machine.processor().getNumPhysPages()];
+		if(Config.getInteger("VMKernel.pffInterval", 0) > 0)
+			loadController = new LoadController(this);
+		if(Config.getInteger("VMKernel.cleanerLowWater", 0) > 0)
+			pageCleaner = new PageCleaner(this);
+		prefetched = new boolean[Machine.processor().getNumPhysPages()];
 	}
 
 	/**
@@ -42,91 +88,540 @@ public class VMKernel extends UserKernel {
 	 * Start running user programs.
 	 */
 	public void run() {
+		if(loadController != null)
+			new KThread(loadController).setName("load controller").fork();
+		if(pageCleaner != null)
+			new KThread(pageCleaner).setName("page cleaner").fork();
 		super.run();
 	}
 
 	/**
-	 * Terminate this kernel. Never returns.
+	 * Terminate this kernel. Never returns. Prints the paging statistics if
+	 * the <tt>v</tt> debug flag is set.
 	 */
 	public void terminate() {
+		if(Lib.test(dbgVM))
+			printStats();
 		swapFile.close();
 		swapFile = null;
-		swapTable.clear();
-		swapFree.clear();
-		swapSize = 0;
+		swap = null;
 		fileSystem.remove(swapFileName);
 		super.terminate();
 	}
+
+	/**
+	 * Print a summary of what the VM subsystem did, one line for each part.
+	 */
+	private void printStats() {
+		Lib.debug(dbgVM, "Replacement: policy " + replacementPolicy.getName()
+				+ ", page faults " + numPageFaults + " (" + numZeroFills
+				+ " zero-fill), write-backs "
+				+ numWriteBacks);
+		Lib.debug(dbgVM, "Swap: " + swap.getStats());
+		Lib.debug(dbgVM, "Mapped files: write-backs " + numFileWriteBacks);
+		if(loadController != null)
+			Lib.debug(dbgVM, "Load control: " + loadController.getStats());
+		if(pageCleaner != null)
+			Lib.debug(dbgVM, "Page cleaner: " + pageCleaner.getStats());
+		Lib.debug(dbgVM, "Read-ahead: window " + readAhead + ", pages "
+				+ numPrefetched + ", hits " + numPrefetchHits + " ("
+				+ (numPrefetched == 0 ? 0 : numPrefetchHits * 100 / numPrefetched)
+				+ "%), evicted unused " + numPrefetchWasted);
+		int resident = 0, mapped = 0;
+		for(int i=0;i<phyTable.length;i++){
+			VMPage page = phyTable[i];
+			if(page != null && page.pid < 0 && page.entry != null){
+				resident++;
+				mapped += page.refCount;
+			}
+		}
+		Lib.debug(dbgVM, "Shared pages: executables " + sharedOwners.size()
+				+ ", pages " + sharedPages.size() + ", resident " + resident
+				+ " (" + mapped + " mappings), hits " + numSharedHits
+				+ ", copy-on-write faults " + numCopyOnWrites
+				+ ", executables changed " + numSharedForgotten);
+	}
+	
+	/**
+	 * Claim a frame for a page, evicting another page if there is no free
+	 * frame. The frame is returned pinned. Called with <tt>frameLock</tt>
+	 * held, which is released while an evicted page is written to swap.
+	 * 
+	 * @return the ppn of the frame.
+	 */
+	public int allocFrame(int pid, int vpn){
+		return allocFrame(new VMPage(pid, vpn));
+	}
+	
+	/**
+	 * Claim a frame for a page, as <tt>allocFrame(pid, vpn)</tt>, recording
+	 * <i>page</i> itself in <tt>phyTable</tt>.
+	 * 
+	 * @return the ppn of the frame.
+	 */
+	public int allocFrame(VMPage page){
+		return allocFrame(page, true);
+	}
+	
+	/**
+	 * Claim a frame for a page, as <tt>allocFrame(pid, vpn)</tt>, but fail
+	 * instead of waiting when every frame is pinned. Used for pages nobody is
+	 * waiting for yet.
+	 * 
+	 * @return the ppn of the frame, or -1.
+	 */
+	public int tryAllocFrame(int pid, int vpn){
+		return allocFrame(new VMPage(pid, vpn), false);
+	}
+	
+	private int allocFrame(VMPage page, boolean wait){
+		Lib.assertTrue(frameLock.isHeldByCurrentThread());
+		int ppn = -1;
+		for(int i=0;i<phyTable.length;i++){
+			if(phyTable[i] == null){
+				ppn = i;
+				break;
+			}
+		}
+		if(ppn < 0)
+			ppn = swapOut(wait);
+		else
+			pinCount[ppn]++;
+		if(ppn < 0)
+			return -1;
+		phyTable[ppn] = page;
+		if(pageCleaner != null)
+			pageCleaner.frameTaken();
+		return ppn;
+	}
+	
+	/**
+	 * Return the number of frames holding no page.
+	 */
+	public int getNumFreeFrames(){
+		int n = 0;
+		for(int i=0;i<phyTable.length;i++){
+			if(phyTable[i] == null)
+				n++;
+		}
+		return n;
+	}
+	
+	/**
+	 * Ask the replacement policy for a frame to evict, without waiting.
+	 * 
+	 * @return the ppn, or -1 if every frame is pinned or free.
+	 */
+	public int chooseVictim(){
+		Lib.assertTrue(frameLock.isHeldByCurrentThread());
+		syncTLB();
+		return replacementPolicy.findVictim(this);
+	}
 	
 	/**
-	 * Return the ppn that's freed.
+	 * Evict the page chosen by the replacement policy, writing it to swap if
+	 * it is dirty. Waits if every frame is pinned.
+	 * 
+	 * @return the ppn that's freed, pinned.
 	 */
 	public int swapOut(){
-		Lib.assertTrue(VMProcess.tableLock.isHeldByCurrentThread());
+		return swapOut(true);
+	}
+	
+	private int swapOut(boolean wait){
+		Lib.assertTrue(frameLock.isHeldByCurrentThread());
 		Processor p = Machine.processor();
-		byte [] memory = p.getMemory();
-		int ppn=-1;
-		boolean flag = true;
-		int luckyNumber = 3;
-		int currentLuck = 0;
-		while(flag&&currentLuck < luckyNumber){
-			 ppn = Lib.random(Machine.processor().getNumPhysPages());
-			 flag= false;
-			 for(int i=0;i<p.getTLBSize();i++){
-					if(p.readTLBEntry(i).ppn == ppn)flag = true;
-			}
-			 currentLuck++;
-		}
-		//invalidate TLB entry
-		if(flag){
-			Lib.debug(dbgVM, "[Luck]Not so lucky!");
-			 for(int i=0;i<p.getTLBSize();i++){
-					if(p.readTLBEntry(i).ppn == ppn){
-						putTLBEntry(i, VMProcess.nullEntry);
-					}
+		int ppn;
+		while(true){
+			syncTLB();
+			ppn = replacementPolicy.findVictim(this);
+			if(ppn >= 0)break;
+			if(!wait)return -1;
+			pagingDone.sleep();
+		}
+		evict(ppn);
+		return ppn;
+	}
+	
+	/**
+	 * Evict the page in a frame now, instead of waiting for the replacement
+	 * policy to choose it, and free the frame. Used by the load controller.
+	 * 
+	 * @return <tt>false</tt> if the frame could not be evicted.
+	 */
+	public boolean reclaim(int ppn){
+		Lib.assertTrue(frameLock.isHeldByCurrentThread());
+		if(!isEvictable(ppn))
+			return false;
+		evict(ppn);
+		unpin(ppn);
+		return true;
+	}
+	
+	/**
+	 * Take the page out of a frame, writing it back if it is dirty. The
+	 * frame is left free and pinned.
+	 */
+	private void evict(int ppn){
+		Processor p = Machine.processor();
+		Lib.assertTrue(ppn < p.getNumPhysPages() && isEvictable(ppn));
+		pinCount[ppn]++;
+		VMPage page = phyTable[ppn];
+		//invalidate TLB entry; a shared page no process maps has none
+		if(page.pid >= 0 || page.refCount > 0){
+			for(int i=0;i<p.getTLBSize();i++){
+				if(p.readTLBEntry(i).valid && p.readTLBEntry(i).ppn == ppn){
+					putTLBEntry(i, VMProcess.nullEntry);
+				}
 			}
 		}
 		
-//		phyTableLock.acquire();
-		VMPage page = phyTable[ppn];
-		TranslationEntry e = ipTable.get(page);
-		if(e==null){
-			Lib.assertNotReached("swapOut here?");
+		TranslationEntry e = ipTable.remove(page.key());
+		Lib.assertTrue(e != null);
+		// the owner sees the page as gone from here on
+		e.valid = false;
+		if(prefetched[ppn]){
+			prefetched[ppn] = false;
+			numPrefetchWasted++;
+			prefetchScore--;
 		}
-		TranslationEntry tmp = ipTable.remove(page);
-		Lib.assertTrue(tmp != null);
 		
 		Lib.debug(dbgVM, "[SWAP out chosen]"+ppn + " ," + page.toString());
 
+		// a clean page is dropped: its contents are still in swap or in the
+		// executable, or it is a demand-zero page that was never written
 		if(!e.readOnly && e.dirty){
 			Lib.debug(dbgVM, "[SWAP out]"+ppn + " ," + page.toString());
-//			swapLock.acquire();
-			Integer pos = swapTable.get(page);
-			if(pos == null){
-				if(swapFree.isEmpty()){
-					pos = swapSize;
-					swapSize += pageSize;
-				}else{
-					pos = swapFree.poll();
-				}
-			}
-			swapFile.write(pos, memory, Processor.makeAddress(ppn, 0), pageSize);
-			swapTable.put(page, pos);
-//			swapLock.release();
+			if(page.map != null)
+				writeBackMapped(page, ppn);
+			else
+				writeBack(page.pid, page.vpn, ppn);
 		}
-		e.valid = false;
 		e.ppn = -1;
 		phyTable[ppn] = null;
-//		phyTableLock.release();
-		return ppn;
+		p.invalidateDecodeCache(ppn);
+	}
+	
+	/**
+	 * Write a dirty page to swap, together with the dirty pages that follow it
+	 * in the same process, up to <tt>VMKernel.swapCluster</tt> pages in one
+	 * write. The following pages stay in memory and become clean. The pages
+	 * are in transit until the write finishes; <tt>frameLock</tt> is released
+	 * while it is in progress.
+	 */
+	private void writeBack(int pid, int vpn, int ppn){
+		Processor p = Machine.processor();
+		byte [] memory = p.getMemory();
+		
+		long [] keys = new long[swapCluster];
+		keys[0] = PageMap.key(pid, vpn);
+		int n = 1;
+		while(n < swapCluster){
+			TranslationEntry next = ipTable.get(pid, vpn + n);
+			if(next == null || next.readOnly || !next.dirty || isInTransit(pid, vpn + n)
+					|| phyTable[next.ppn].map != null)break;
+			keys[n] = PageMap.key(pid, vpn + n);
+			n++;
+		}
+		
+		int slot = swap.allocate(keys, n);
+		byte [] buf = memory;
+		int offset = Processor.makeAddress(ppn, 0);
+		if(n > 1){
+			// clean the neighbours before copying them, so that a store
+			// made while the write is in progress marks them dirty again
+			for(int i=0;i<p.getTLBSize();i++){
+				TranslationEntry t = p.readTLBEntry(i);
+				if(t.valid && t.dirty && t.asid == pid && t.vpn > vpn && t.vpn < vpn + n){
+					t.dirty = false;
+					p.writeTLBEntry(i, t);
+				}
+			}
+			buf = new byte[n * pageSize];
+			offset = 0;
+			System.arraycopy(memory, Processor.makeAddress(ppn, 0), buf, 0, pageSize);
+			for(int i=1;i<n;i++){
+				TranslationEntry next = ipTable.get(pid, vpn + i);
+				next.dirty = false;
+				System.arraycopy(memory, Processor.makeAddress(next.ppn, 0), buf, i * pageSize, pageSize);
+			}
+		}
+		
+		for(int i=0;i<n;i++)
+			inTransit.put(keys[i], keys);
+		ioInFlight++;
+		frameLock.release();
+		swap.write(slot, buf, offset, n);
+		frameLock.acquire();
+		ioInFlight--;
+		for(int i=0;i<n;i++)
+			inTransit.remove(keys[i]);
+		pagingDone.wakeAll();
+		numWriteBacks += n;
+	}
+	
+	/**
+	 * Write a page of a mapped file back to the file. The page is in transit
+	 * until the write finishes; <tt>frameLock</tt> is released while it is in
+	 * progress, so the page must already be out of <tt>ipTable</tt>.
+	 */
+	void writeBackMapped(VMPage page, int ppn){
+		Lib.assertTrue(frameLock.isHeldByCurrentThread() && page.map != null);
+		forgetExecutable(page.map.getName());
+		markInTransit(page.pid, page.vpn);
+		frameLock.release();
+		page.map.writePage(page.vpn, Machine.processor().getMemory(),
+				Processor.makeAddress(ppn, 0));
+		frameLock.acquire();
+		clearInTransit(page.pid, page.vpn);
+		numFileWriteBacks++;
+	}
+	
+	/**
+	 * Fill a frame from swap, if the page has a copy there. Called with
+	 * <tt>frameLock</tt> held, which is released during the read.
+	 * 
+	 * @return <tt>true</tt> if the page was in swap.
+	 */
+	public boolean swapIn(int pid, int vpn, int ppn){
+		Lib.assertTrue(frameLock.isHeldByCurrentThread() && pinCount[ppn] > 0);
+		int slot = swap.getSlot(PageMap.key(pid, vpn));
+		if(slot < 0){
+			Lib.debug(dbgVM, "[SWAP in fault]"+pid + "," + vpn);
+			return false;
+		}
+		Lib.debug(dbgVM, "[SWAP in chosen]"+ppn + " ," + pid + "," + vpn);
+		ioInFlight++;
+		frameLock.release();
+		swap.read(slot, Machine.processor().getMemory(), Processor.makeAddress(ppn, 0));
+		frameLock.acquire();
+		ioInFlight--;
+		return true;
+	}
+	
+	/**
+	 * Fill frames from swap with pages read ahead of a fault. Pages whose
+	 * copies lie in consecutive slots are read with one read. Called with
+	 * <tt>frameLock</tt> held, which is released during the reads; the frames
+	 * must be pinned and every page must be in swap.
+	 */
+	public void prefetch(int pid, int firstVpn, int[] ppns, int n){
+		Lib.assertTrue(frameLock.isHeldByCurrentThread());
+		// no compaction may move the slots until we are done
+		ioInFlight++;
+		int [] slots = new int[n];
+		for(int i=0;i<n;i++){
+			Lib.assertTrue(pinCount[ppns[i]] > 0);
+			slots[i] = swap.getSlot(PageMap.key(pid, firstVpn + i));
+			Lib.assertTrue(slots[i] >= 0);
+		}
+		frameLock.release();
+		byte [] memory = Machine.processor().getMemory();
+		for(int i=0,run;i<n;i+=run){
+			for(run=1;i+run<n && slots[i+run] == slots[i]+run;run++);
+			byte [] buf = new byte[run * pageSize];
+			swap.read(slots[i], buf, 0, run);
+			for(int j=0;j<run;j++)
+				System.arraycopy(buf, j * pageSize, memory,
+						Processor.makeAddress(ppns[i+j], 0), pageSize);
+		}
+		frameLock.acquire();
+		ioInFlight--;
+		for(int i=0;i<n;i++)
+			prefetched[ppns[i]] = true;
+		numPrefetched += n;
+	}
+	
+	/**
+	 * Note that a page is being used. Counts a hit if it was read ahead and
+	 * this is its first use.
+	 */
+	public void pageUsed(int ppn){
+		if(prefetched[ppn]){
+			prefetched[ppn] = false;
+			numPrefetchHits++;
+			prefetchScore = Math.min(prefetchScore + 1, readAhead);
+		}
+	}
+	
+	/**
+	 * Note that a frame has been returned to the free pool by its owner
+	 * rather than evicted, so that a page read ahead into it and never used
+	 * is not taken for the next page to fill the frame.
+	 */
+	public void frameFreed(int ppn){
+		Lib.assertTrue(frameLock.isHeldByCurrentThread());
+		prefetched[ppn] = false;
+	}
+	
+	/**
+	 * Return the number of pages to read ahead of a sequential fault: up to
+	 * <tt>VMKernel.readAhead</tt>, or 0 while more pages read ahead have been
+	 * evicted unused than have been used. Every sequential fault that could
+	 * have been read ahead brings read-ahead closer to being tried again.
+	 */
+	public int getReadAhead(){
+		if(prefetchScore >= 0)
+			return readAhead;
+		prefetchScore++;
+		return 0;
+	}
+	
+	/**
+	 * Test whether a page is being written to swap or to its file, or a shared
+	 * page is being read from its executable.
+	 */
+	public boolean isInTransit(int pid, int vpn){
+		return inTransit.get(pid, vpn) != null;
+	}
+	
+	/**
+	 * Mark a page as in transit, so that faults on it wait for
+	 * <tt>clearInTransit()</tt> instead of reading it while it is being read
+	 * or written.
+	 */
+	void markInTransit(int pid, int vpn){
+		long key = PageMap.key(pid, vpn);
+		Lib.assertTrue(inTransit.put(key, new long[] { key }) == null);
+	}
+	
+	/**
+	 * Clear the mark set by <tt>markInTransit()</tt>.
+	 */
+	void clearInTransit(int pid, int vpn){
+		Lib.assertTrue(inTransit.remove(PageMap.key(pid, vpn)) != null);
+		pagingDone.wakeAll();
+	}
+	
+	/**
+	 * Return the owner under which the shared pages of an executable are kept.
+	 * Owners are negative, so they never clash with a pid or an ASID, and are
+	 * never reused.
+	 * 
+	 * @param name
+	 *            the name of the executable file.
+	 */
+	public int getSharedOwner(String name){
+		Lib.assertTrue(frameLock.isHeldByCurrentThread());
+		Integer owner = sharedOwners.get(name);
+		if(owner == null){
+			owner = --lastSharedOwner;
+			sharedOwners.put(name, owner);
+		}
+		return owner;
+	}
+	
+	/**
+	 * Forget the shared pages of a file that is being created, written or
+	 * removed, so that the next process to run it reads its new contents
+	 * under a new owner. Processes already running it keep their owner and
+	 * the pages they map; the pages no process maps are dropped now.
+	 * 
+	 * @param name
+	 *            the name of the file.
+	 */
+	public void forgetExecutable(String name){
+		Lib.assertTrue(frameLock.isHeldByCurrentThread());
+		Integer owner = sharedOwners.remove(name);
+		if(owner == null)
+			return;
+		numSharedForgotten++;
+		ArrayList<VMPage> unused = new ArrayList<VMPage> ();
+		for(int i=0;i<sharedPages.capacity();i++){
+			VMPage page = sharedPages.valueAt(i);
+			if(page != null && page.pid == owner && page.refCount == 0)
+				unused.add(page);
+		}
+		for(VMPage page : unused){
+			if(page.entry.valid)
+				reclaim(page.entry.ppn);
+			if(!page.entry.valid && !isInTransit(owner, page.vpn))
+				sharedPages.remove(page.key());
+		}
+	}
+	
+	/**
+	 * Return a shared page, creating it with an invalid, read-only entry the
+	 * first time it is asked for.
+	 * 
+	 * @param owner
+	 *            the executable, as returned by <tt>getSharedOwner()</tt>.
+	 * @param vpn
+	 *            the page, which lies in a read-only or initialized section.
+	 */
+	public VMPage getSharedPage(int owner, int vpn){
+		Lib.assertTrue(frameLock.isHeldByCurrentThread() && owner < 0);
+		long key = PageMap.key(owner, vpn);
+		VMPage page = sharedPages.get(key);
+		if(page == null){
+			page = new VMPage(owner, vpn);
+			page.entry = new TranslationEntry(vpn, -1, false, true, false, false);
+			page.entry.asid = owner;
+			sharedPages.put(key, page);
+		}
+		return page;
+	}
+	
+	/**
+	 * Test whether the replacement policy may choose a frame: it holds a
+	 * resident page that is neither pinned nor still being written to swap.
+	 */
+	public boolean isEvictable(int ppn){
+		return pinCount[ppn] == 0 && getEntry(ppn) != null
+				&& inTransit.get(phyTable[ppn].key()) == null;
+	}
+	
+	/**
+	 * Pin a frame holding a valid page, so that it is not evicted while the
+	 * kernel works on it with <tt>frameLock</tt> released.
+	 */
+	public void pin(int ppn){
+		Lib.assertTrue(frameLock.isHeldByCurrentThread() && getEntry(ppn) != null);
+		pinCount[ppn]++;
+	}
+	
+	/**
+	 * Unpin a frame returned by <tt>allocFrame()</tt> or pinned by
+	 * <tt>pin()</tt>.
+	 */
+	public void unpin(int ppn){
+		Lib.assertTrue(frameLock.isHeldByCurrentThread() && pinCount[ppn] > 0);
+		if(--pinCount[ppn] == 0)
+			pagingDone.wakeAll();
+	}
+	
+	/**
+	 * Merge the used and dirty bits of every valid TLB entry into its page
+	 * entry, and clear the used bits in the TLB so that the replacement policy
+	 * sees fresh references the next time it looks.
+	 */
+	public void syncTLB(){
+		Processor p = Machine.processor();
+		for(int i=0;i<p.getTLBSize();i++){
+			TranslationEntry e = p.readTLBEntry(i);
+			if(!e.valid || !e.used)continue;
+			e.used = false;
+			putTLBEntry(i, e);
+		}
+	}
+	
+	/**
+	 * Return the page entry of the page held in a frame.
+	 * 
+	 * @param ppn
+	 *            the physical page number.
+	 * @return the entry, or <tt>null</tt> if the frame is free.
+	 */
+	public TranslationEntry getEntry(int ppn){
+		VMPage page = phyTable[ppn];
+		return page == null ? null : ipTable.get(page.key());
 	}
 	
 	public void putTLBEntry(int i, TranslationEntry e){
-		//Lib.assertTrue(VMProcess.tableLock.isHeldByCurrentThread());
 		Processor p = Machine.processor();
 		TranslationEntry oldEntry = p.readTLBEntry(i);
 		if(oldEntry!= null&& oldEntry.valid){
-			TranslationEntry oldEntry2 = VMKernel.getKernel().ipTable.get(UserKernel.phyTable[oldEntry.ppn]);
+			TranslationEntry oldEntry2 = getEntry(oldEntry.ppn);
 			if(oldEntry2!=null){
 				oldEntry2.used |= oldEntry.used;
 				oldEntry2.dirty |= oldEntry.dirty;
@@ -136,39 +631,30 @@ public class VMKernel extends UserKernel {
 	}
 	
 	/**
-	 * @Warning please allocate a page before calling me.
-	 * @param page
+	 * Add a process to the processes whose pages are in memory.
 	 */
-	public boolean swapIn(VMPage page){
-		//Lib.assertTrue(VMProcess.tableLock.isHeldByCurrentThread());
-		Processor p = Machine.processor();
-//		swapLock.acquire();
-		Integer pos = swapTable.get(page);
-		TranslationEntry e = ipTable.get(page);
-		if(pos == null || e == null){
-			Lib.debug(dbgVM, "[SWAP in fault]"+page.toString());
-//			swapLock.release();
-			return false;
-		}
-		Lib.debug(dbgVM, "[SWAP in chosen]"+e.ppn + " ," + page.toString());
-		byte [] memory = p.getMemory();
-		swapFile.read(pos, memory, Processor.makeAddress(e.ppn, 0), pageSize);
-//		swapLock.release();
-		return true;
+	void addProcess(VMProcess p){
+		Lib.assertTrue(frameLock.isHeldByCurrentThread());
+		processes.add(p);
+	}
+	
+	/**
+	 * Remove an exiting process from the processes whose pages are in memory.
+	 */
+	void removeProcess(VMProcess p){
+		Lib.assertTrue(frameLock.isHeldByCurrentThread());
+		processes.remove(p);
+		if(loadController != null)
+			loadController.processExited(p);
 	}
 	
 	public void freeSwap(VMProcess p){
-//		swapLock.acquire();
-		LinkedList<VMPage> toBeFreed = new LinkedList<VMPage> ();
-		for(VMPage x : swapTable.keySet()){
-			if(x.pid == p.pid)
-				toBeFreed.add(x);
-		}
-		
-		for(VMPage x : toBeFreed){
-			swapFree.add(swapTable.remove(x));
-		}
-//		swapLock.release();
+		Lib.assertTrue(frameLock.isHeldByCurrentThread());
+		for(int vpn=0;vpn<p.getNumPages();vpn++)
+			swap.freePage(PageMap.key(p.pid, vpn));
+		// compaction moves slots, so no other swap I/O may be in progress
+		if(ioInFlight == 0 && swap.shouldCompact())
+			swap.compact();
 	}
 	
 	public static VMKernel getKernel() {
@@ -177,12 +663,43 @@ public class VMKernel extends UserKernel {
 	
 	private static final char dbgVM = 'v';
 	private static final int pageSize = Processor.pageSize;
-	public HashMap<VMPage, TranslationEntry> ipTable = new HashMap<VMPage, TranslationEntry> ();
+	public PageReplacementPolicy replacementPolicy;
+	public int numPageFaults = 0;
+	public int numZeroFills = 0;
+	public int numSharedHits = 0;
+	public int numSharedForgotten = 0;
+	public int numCopyOnWrites = 0;
+	public int numWriteBacks = 0;
+	public int numFileWriteBacks = 0;
+	public int numPrefetched = 0, numPrefetchHits = 0, numPrefetchWasted = 0;
+	public PageMap<TranslationEntry> ipTable = new PageMap<TranslationEntry> ();
 	
 	public OpenFile swapFile;
-	public HashMap<VMPage, Integer> swapTable = new HashMap<VMPage, Integer> ();
-	public LinkedList<Integer> swapFree = new LinkedList<Integer> ();
-	public int swapSize = 0;
-	//public Lock swapLock;
+	public SwapSpace swap;
+	private int swapCluster;
+	private int readAhead;
+	/**
+	 * <tt>false</tt> if the TLB is flushed on every switch to another
+	 * process, as if its entries were not tagged with an ASID.
+	 */
+	boolean useASID;
+	private boolean [] prefetched;
+	private int prefetchScore = 0;
+	
+	/** The processes whose pages are in memory. */
+	ArrayList<VMProcess> processes = new ArrayList<VMProcess> ();
+	/** The load controller, or <tt>null</tt> if load control is off. */
+	LoadController loadController = null;
+	/** The page daemon, or <tt>null</tt> if it is off. */
+	PageCleaner pageCleaner = null;
+	
+	public Lock frameLock;
+	public Condition pagingDone;
+	private int [] pinCount;
+	private PageMap<long []> inTransit = new PageMap<long []> ();
+	private int ioInFlight = 0;
+	private HashMap<String, Integer> sharedOwners = new HashMap<String, Integer> ();
+	private int lastSharedOwner = 0;
+	private PageMap<VMPage> sharedPages = new PageMap<VMPage> ();
 	public static final String swapFileName = "SWAP";
 }
@@ -18,16 +18,31 @@ public class VMPage {
 		return pid + "," + vpn;
 	}
 	
+	/**
+	 * Return the key of this page in a <tt>PageMap</tt>.
+	 */
+	public long key(){
+		return PageMap.key(pid, vpn);
+	}
+	
 	public boolean equals(Object o){
-		if(o == null)return false;
-		return toString().equals(o.toString());
+		if(!(o instanceof VMPage))return false;
+		VMPage p = (VMPage) o;
+		return pid == p.pid && vpn == p.vpn;
 	}
 	
 	public int hashCode(){
-		return toString().hashCode();
+		return pid * 31 + vpn;
 	}
 
 	public int pid;
 	public int vpn;
+	
+	/** The entry of a shared page; <tt>null</tt> for a page of a process. */
+	public TranslationEntry entry = null;
+	/** The number of processes mapping a shared page. */
+	public int refCount = 0;
+	/** The file a page of a mapped file belongs to, or <tt>null</tt>. */
+	public MappedFile map = null;
 
 }
@@ -1,12 +1,15 @@
 package nachos.vm;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
 
+import nachos.threads.KThread;
 import nachos.threads.Lock;
 import nachos.machine.CoffSection;
 import nachos.machine.Config;
 import nachos.machine.Lib;
 import nachos.machine.Machine;
+import nachos.machine.OpenFile;
 import nachos.machine.Processor;
 import nachos.machine.TranslationEntry;
 import nachos.userprog.UserKernel;
@@ -28,14 +31,16 @@ public class VMProcess extends UserProcess {
 	 * Called by <tt>UThread.saveState()</tt>.
 	 */
 	public void saveState() {
+		// TLB entries are tagged with our pid, so they can stay in the TLB
+		if(VMKernel.getKernel().useASID)
+			return;
 		Processor p = Machine.processor();
+		if(savedTLB == null)
+			savedTLB = new int[p.getTLBSize()];
 		for(int i=0;i<p.getTLBSize();i++){
 			TranslationEntry e = p.readTLBEntry(i);
-			if(e==null||!e.valid)continue;
-			myTLB[i] = e.vpn;
-			//p.writeTLBEntry(i, nullEntry);
+			savedTLB[i] = e.valid && e.asid == pid ? e.vpn : -1;
 		}
-		
 	}
 
 	/**
@@ -43,16 +48,22 @@ public class VMProcess extends UserProcess {
 	 * <tt>UThread.restoreState()</tt>.
 	 */
 	public void restoreState() {
-		Processor p = Machine.processor();
 		Lib.debug(dbgProcess, "restoring states of "+pid);
-		for(int i=0;i<p.getTLBSize();i++){
-			TranslationEntry pageEntry = myTLB[i]!=null? getPage(this.pid, myTLB[i]) : null;
-			if(pageEntry != null){	
-				VMKernel.getKernel().putTLBEntry(i, pageEntry);
-			}else VMKernel.getKernel().putTLBEntry(i, nullEntry);
-			myTLB[i]=null;
-			//if(numPages - stackPages - argPages <= myTLB[i].vpn)reqPage(new VMPage(this.pid, myTLB[i].vpn));
+		Processor p = Machine.processor();
+		if(!VMKernel.getKernel().useASID && p.getASID() != pid){
+			// without ASIDs the TLB only holds the running process's entries:
+			// flush it and reload the private pages we had in it
+			for(int i=0;i<p.getTLBSize();i++){
+				TranslationEntry e = null;
+				if(savedTLB != null && savedTLB[i] >= 0 && savedTLB[i] < numPages)
+					e = pageTable[savedTLB[i]];
+				if(e == null || !e.valid || e.asid != pid)
+					e = nullEntry;
+				VMKernel.getKernel().putTLBEntry(i, e);
+			}
 		}
+		p.setASID(pid);
+		thread = KThread.currentThread();
 		dumpTLB();
 		dumpPageTable();
 	}
@@ -63,17 +74,33 @@ public class VMProcess extends UserProcess {
 		for(int i=0;i<p.getTLBSize();i++){
 			TranslationEntry e = p.readTLBEntry(i);
 			if(!e.valid)continue;
-			Lib.debug(dbgVM, e.vpn + ", ppn="+ e.ppn + ", dirty=" + e.dirty+ ", used=" + e.used+ ", readOnly=" + e.readOnly+ ", valid=" + e.valid);
+			Lib.debug(dbgVM, e.vpn + ", ppn="+ e.ppn + ", dirty=" + e.dirty+ ", used=" + e.used+ ", readOnly=" + e.readOnly+ ", valid=" + e.valid+ ", asid=" + e.asid);
 		}
 	}
 
 	/**
 	 * Initializes page tables for this process so that the executable can be
-	 * demand-paged.
+	 * demand-paged. <tt>pageTable</tt> holds the entries of the pages this
+	 * process has in memory; the same entries are in <tt>VMKernel.ipTable</tt>.
+	 * Also records which COFF section each page belongs to. Pages of read-only
+	 * and initialized sections start out mapped to shared pages; see
+	 * <tt>VMKernel</tt>.
 	 * 
 	 * @return <tt>true</tt> if successful.
 	 */
 	protected boolean loadSections() {
+		pageTable = new TranslationEntry[numPages];
+		sections = new CoffSection[numPages];
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+			for (int i = 0; i < section.getLength(); i++)
+				sections[section.getFirstVPN() + i] = section;
+		}
+		VMKernel kernel = VMKernel.getKernel();
+		kernel.frameLock.acquire();
+		sharedOwner = kernel.getSharedOwner(coffName);
+		kernel.addProcess(this);
+		kernel.frameLock.release();
 		return true;
 	}
 
@@ -81,25 +108,189 @@ public class VMProcess extends UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
-		tableLock.acquire();
-		LinkedList<VMPage> toBeFreed = new LinkedList<VMPage>();
-		for(VMPage k: VMKernel.getKernel().ipTable.keySet()){
-			if(k.pid == this.pid){
-				toBeFreed.add(k);
-			}
-		}
-		VMKernel.getKernel().freeSwap(this);
-		for(VMPage k: toBeFreed)
-			freePage(k);
-		tableLock.release();
-		
+		VMKernel kernel = VMKernel.getKernel();
+		kernel.frameLock.acquire();
+		// drop our TLB entries before their frames can be reused
 		Processor p = Machine.processor();
 		for(int i=0;i<p.getTLBSize();i++){
-			VMKernel.getKernel().putTLBEntry(i, nullEntry);
+			TranslationEntry e = p.readTLBEntry(i);
+			if(e.valid && e.asid == pid)
+				kernel.putTLBEntry(i, nullEntry);
+		}
+		while(!maps.isEmpty())
+			unmap(maps.get(maps.size() - 1));
+		// another process may be writing our pages out; let it finish
+		for(int vpn=0;vpn<numPages;vpn++){
+			while(kernel.isInTransit(pid, vpn))
+				kernel.pagingDone.sleep();
 		}
+		kernel.removeProcess(this);
+		kernel.freeSwap(this);
+		for(int vpn=0;vpn<numPages;vpn++){
+			if(pageTable[vpn] == null)
+				continue;
+			// shared pages stay in the cache
+			if(pageTable[vpn].asid != pid)
+				kernel.getSharedPage(sharedOwner, vpn).refCount--;
+			else if(pageTable[vpn].valid)
+				freePage(pid, vpn);
+		}
+		kernel.frameLock.release();
 		coff.close();
 	}
 
+	/**
+	 * Handle a syscall exception, adding <tt>mmap()</tt> (syscall 10) to the
+	 * syscalls of <tt>UserProcess</tt>. <tt>read()</tt> and <tt>write()</tt>
+	 * fail on a mapped file descriptor, and <tt>close()</tt> unmaps it first.
+	 */
+	public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+		switch (syscall) {
+		case syscallMmap:
+			return handleMmap(a0, a1);
+		case syscallRead:
+		case syscallWrite:
+			if (getMap(a0) != null)
+				return -1;
+			break;
+		case syscallClose:
+			MappedFile map = getMap(a0);
+			if (map != null) {
+				VMKernel.getKernel().frameLock.acquire();
+				unmap(map);
+				VMKernel.getKernel().frameLock.release();
+			}
+			break;
+		}
+		return super.handleSyscall(syscall, a0, a1, a2, a3);
+	}
+
+	/**
+	 * Map the file open as <i>fd</i> at the page-aligned address
+	 * <i>vaddr</i>, beyond the end of the program's address space. Its pages
+	 * are read in as they are touched.
+	 * 
+	 * @return the length of the file, or -1 on error.
+	 */
+	private int handleMmap(int fd, int vaddr) {
+		if (vaddr <= 0 || Processor.offsetFromAddress(vaddr) != 0
+				|| !curfd.contains(fd) || getMap(fd) != null)
+			return -1;
+		UserKernel.fdLock.acquire();
+		OpenFile f = fd < UserKernel.fileDescriptors.size() ? UserKernel.fileDescriptors
+				.get(fd) : null;
+		UserKernel.fdLock.release();
+		if (f == null || f.getFileSystem() == null)
+			return -1;
+
+		int length = f.length();
+		int vpn = Processor.pageFromAddress(vaddr);
+		int pages = (length + pageSize - 1) / pageSize;
+		if (length < 0 || vpn < numPages
+				|| (long) vaddr + length > Integer.MAX_VALUE)
+			return -1;
+		for (MappedFile m : maps) {
+			if (m.overlaps(vpn, pages))
+				return -1;
+		}
+		// a handle of our own, so that the map outlives the descriptor
+		OpenFile file = f.getFileSystem().open(f.getName(), false);
+		if (file == null)
+			return -1;
+		maps.add(new MappedFile(file, fd, vpn, length));
+		return length;
+	}
+
+	/**
+	 * Return the map made from a file descriptor, or <tt>null</tt>.
+	 */
+	private MappedFile getMap(int fd) {
+		for (MappedFile m : maps) {
+			if (m.fd == fd)
+				return m;
+		}
+		return null;
+	}
+
+	/**
+	 * Remove a map, writing its dirty pages back to the file and freeing its
+	 * frames. Called with <tt>frameLock</tt> held, which is released while
+	 * pages are written.
+	 */
+	private void unmap(MappedFile map) {
+		VMKernel kernel = VMKernel.getKernel();
+		Lib.assertTrue(kernel.frameLock.isHeldByCurrentThread());
+		Processor p = Machine.processor();
+		for (int i = 0; i < map.numPages; i++) {
+			int vpn = map.firstVpn + i;
+			while (kernel.isInTransit(pid, vpn))
+				kernel.pagingDone.sleep();
+			TranslationEntry e = map.entries[i];
+			if (e == null || !e.valid)
+				continue;
+			// merges the TLB's dirty bit into the entry
+			for (int j = 0; j < p.getTLBSize(); j++) {
+				TranslationEntry t = p.readTLBEntry(j);
+				if (t.valid && t.asid == pid && t.vpn == vpn)
+					kernel.putTLBEntry(j, nullEntry);
+			}
+			// out of ipTable, the frame can no longer be chosen for eviction
+			int ppn = e.ppn;
+			kernel.ipTable.remove(PageMap.key(pid, vpn));
+			e.valid = false;
+			if (e.dirty)
+				kernel.writeBackMapped(UserKernel.phyTable[ppn], ppn);
+			e.ppn = -1;
+			UserKernel.phyTable[ppn] = null;
+			kernel.frameFreed(ppn);
+			kernel.pagingDone.wakeAll();
+		}
+		maps.remove(map);
+		map.close();
+	}
+
+	/**
+	 * Return the entry of a page of a mapped file, reading it from the file
+	 * if it is not in memory.
+	 * 
+	 * @return the entry, or <tt>null</tt> if no file is mapped at the page.
+	 */
+	private TranslationEntry reqMappedPage(int vpn) {
+		MappedFile map = null;
+		for (MappedFile m : maps) {
+			if (m.contains(vpn))
+				map = m;
+		}
+		if (map == null)
+			return null;
+		TranslationEntry e = map.entries[vpn - map.firstVpn];
+		if (e != null && e.valid)
+			return e;
+
+		VMKernel kernel = VMKernel.getKernel();
+		// wait for a write of this page to the file to finish
+		while (kernel.isInTransit(pid, vpn))
+			kernel.pagingDone.sleep();
+		kernel.numPageFaults++;
+		VMPage page = new VMPage(pid, vpn);
+		page.map = map;
+		int ppn = kernel.allocFrame(page);
+		e = new TranslationEntry(vpn, ppn, false, false, false, false);
+		e.asid = pid;
+		map.entries[vpn - map.firstVpn] = e;
+		kernel.frameLock.release();
+		map.readPage(vpn, Machine.processor().getMemory(), Processor
+				.makeAddress(ppn, 0));
+		kernel.frameLock.acquire();
+
+		Machine.processor().invalidateDecodeCache(ppn);
+		e.valid = true;
+		kernel.ipTable.put(page.key(), e);
+		kernel.replacementPolicy.pageLoaded(ppn);
+		kernel.unpin(ppn);
+		return e;
+	}
+
 	/**
 	 * Handle a user exception. Called by <tt>UserKernel.exceptionHandler()</tt>
 	 * . The <i>cause</i> argument identifies which exception occurred; see the
@@ -110,181 +301,524 @@ public class VMProcess extends UserProcess {
 	 */
 	public void handleException(int cause) {
 		Processor processor = Machine.processor();
+		LoadController loadController = VMKernel.getKernel().loadController;
+		if (loadController != null) {
+			VMKernel.getKernel().frameLock.acquire();
+			loadController.waitIfSuspended(this);
+			VMKernel.getKernel().frameLock.release();
+		}
 
 		switch (cause) {
 		case Processor.exceptionTLBMiss:
 			int vaddr = processor.readRegister(Processor.regBadVAddr);
 			int vpn = Processor.pageFromAddress(vaddr);
-			int idx = Lib.random(processor.getTLBSize());
+			// the page can only go in its own set of the TLB
+			int ways = processor.getTLBAssociativity();
+			int first = processor.getTLBSet(vpn) * ways;
+			int idx = first + Lib.random(ways);
 			
 			Lib.debug(dbgVM, "TLB miss! "+vpn);
-			for (int i=0;i<processor.getTLBSize();i++){
+			for (int i=first;i<first+ways;i++){
 				if(!processor.readTLBEntry(i).valid){
 					idx = i;
 					break;
 				}
 			}
-			tableLock.acquire();
-			if(vpn<0)handleException(Processor.exceptionBusError);
-			VMKernel.getKernel().putTLBEntry(idx, reqPage(pid, vpn));
-			tableLock.release();
+			Lock frameLock = VMKernel.getKernel().frameLock;
+			frameLock.acquire();
+			TranslationEntry e = reqPage(pid, vpn);
+			if(e == null){
+				frameLock.release();
+				super.handleException(Processor.exceptionAddressError);
+				break;
+			}
+			if(e.asid != pid){
+				// a shared page: tag our copy with our ASID
+				e = new TranslationEntry(e);
+				e.asid = pid;
+			}
+			VMKernel.getKernel().putTLBEntry(idx, e);
+			frameLock.release();
 			Lib.debug(dbgVM, "TLB miss resolved! "+vpn);
 			dumpPageTable();
 			dumpTLB();
 			break;
+		case Processor.exceptionReadOnly:
+			vaddr = processor.readRegister(Processor.regBadVAddr);
+			vpn = Processor.pageFromAddress(vaddr);
+			frameLock = VMKernel.getKernel().frameLock;
+			frameLock.acquire();
+			e = isCopyOnWrite(vpn) ? reqWritablePage(vpn) : null;
+			frameLock.release();
+			// the store is retried and misses in the TLB
+			if(e == null)
+				super.handleException(cause);
+			break;
 		default:
 			super.handleException(cause);
 			break;
 		}
 	}
 	
-	public static void dumpPageTable(){
-		Lib.debug(dbgVM, "-----------page table dump---------");
-		for(VMPage x : VMKernel.getKernel().ipTable.keySet()){
-			TranslationEntry e = VMKernel.getKernel().ipTable.get(x);
-			Lib.debug(dbgVM, x+":"+e.ppn+", readOnly="+e.readOnly);
+	/**
+	 * Copy between this process's virtual memory and an array, faulting pages
+	 * in as needed. <tt>frameLock</tt> is held for the whole copy, except
+	 * while a fault waits for I/O.
+	 */
+	@Override
+	public int copyVirtualMemory(int vaddr, byte[] data, int offset, int length, boolean read) {
+		Lib.assertTrue(offset >= 0 && length >= 0
+				&& offset + length <= data.length);
+		VMKernel kernel = VMKernel.getKernel();
+		Processor p = Machine.processor();
+		byte[] memory = p.getMemory();
+
+		int tot = 0;
+		kernel.frameLock.acquire();
+		while(tot < length){
+			TranslationEntry e = reqUserPage(vaddr + tot, !read);
+			if(e == null)break;
+			int vOffset = Processor.offsetFromAddress(vaddr + tot);
+			int paddr = Processor.makeAddress(e.ppn, vOffset);
+			int amount = Math.min(length - tot, pageSize - vOffset);
+
+			if(read){
+				System.arraycopy(memory, paddr, data, offset + tot, amount);
+			}else{
+				System.arraycopy(data, offset + tot, memory, paddr, amount);
+				p.invalidateDecodeCache(e.ppn);
+				e.dirty = true;
+			}
+			e.used = true;
+			tot += amount;
 		}
+		kernel.frameLock.release();
+
+		return tot;
 	}
-	
+
+	/**
+	 * Move data between a file and this process's virtual memory. The pages
+	 * are faulted in and pinned a batch at a time under one hold of
+	 * <tt>frameLock</tt>; the file then reads or writes their frames
+	 * directly, with the lock released.
+	 */
 	@Override
-	public int copyVirtualMemory(int vaddr, byte[] data, int offset, int length, boolean read) {
-		try{
-			Lib.assertTrue(offset >= 0 && length >= 0
-					&& offset + length <= data.length);
-	
-			Processor p = Machine.processor();
-			byte[] memory = p.getMemory();
-	
-			if(vaddr < 0)handleException(Processor.exceptionAddressError);
-			int curVpn = Processor.pageFromAddress(vaddr);
-			int curOffset = offset;
-			int tot = 0;
-			int vOffset = Processor.offsetFromAddress(vaddr);
-			while(length > 0){
-				tableLock.acquire();
-				TranslationEntry e = reqPage(this.pid,curVpn);
-				int ppn = e.ppn;
-				int paddr = Processor.makeAddress(ppn, vOffset); 
-				int amount = Math.min(length, pageSize - vOffset);
-				if (paddr < 0 || paddr >= memory.length || amount < 0)break;
-	
-				if(read){
-					System.arraycopy(memory, paddr, data, curOffset, amount);
-				}else{
-					System.arraycopy(data, curOffset, memory, paddr, amount);
-					e.dirty = true;
+	protected int transferFile(OpenFile file, int vaddr, int length, boolean fromFile) {
+		VMKernel kernel = VMKernel.getKernel();
+		Processor p = Machine.processor();
+		byte[] memory = p.getMemory();
+		int batch = Math.max(1, Math.min(maxTransferPages, p.getNumPhysPages() / 8));
+		TranslationEntry[] pinned = new TranslationEntry[batch];
+
+		int tot = 0;
+		boolean done = false;
+		while(tot < length && !done){
+			// fault in and pin the next batch of pages
+			int n = 0, end = tot;
+			kernel.frameLock.acquire();
+			for(; n < batch && end < length; n++){
+				TranslationEntry e = reqUserPage(vaddr + end, fromFile);
+				if(e == null)break;
+				kernel.pin(e.ppn);
+				pinned[n] = e;
+				end += Math.min(length - end, pageSize - Processor.offsetFromAddress(vaddr + end));
+			}
+			kernel.frameLock.release();
+			// a page could not be had: this batch is the last
+			boolean last = n < batch && end < length;
+
+			for(int i = 0; i < n && !done; i++){
+				int vOffset = Processor.offsetFromAddress(vaddr + tot);
+				int paddr = Processor.makeAddress(pinned[i].ppn, vOffset);
+				int amount = Math.min(length - tot, pageSize - vOffset);
+				int r = fromFile ? file.read(memory, paddr, amount)
+						: file.write(memory, paddr, amount);
+				if(r < 0){
+					if(tot == 0)
+						tot = -1;
+					done = true;
+					break;
 				}
-				e.used = true;
-	
-				tableLock.release();
-				curOffset += amount;
-				
-				tot += amount;
-				curVpn++;
-				length -= amount;
-				vOffset = 0;
+				tot += r;
+				if(r < amount)
+					done = true;
 			}
-	
-			return tot;
-		} catch(Exception e){
-			e.printStackTrace();
-			return 0;
-		} finally{
-			if(tableLock.isHeldByCurrentThread())
-				tableLock.release();
+
+			kernel.frameLock.acquire();
+			for(int i = 0; i < n; i++){
+				if(fromFile){
+					p.invalidateDecodeCache(pinned[i].ppn);
+					pinned[i].dirty = true;
+				}
+				pinned[i].used = true;
+				kernel.unpin(pinned[i].ppn);
+			}
+			kernel.frameLock.release();
+			done |= last;
 		}
+
+		return tot;
 	}
-	
+
+	/**
+	 * Return the entry of the page holding a virtual address, faulting it in
+	 * and, for a write, breaking copy-on-write.
+	 * 
+	 * @return the entry, or <tt>null</tt> if the page is not mapped, or is
+	 *         read-only and <tt>write</tt> is set.
+	 */
+	private TranslationEntry reqUserPage(int vaddr, boolean write) {
+		if(vaddr < 0)return null;
+		int vpn = Processor.pageFromAddress(vaddr);
+		TranslationEntry e = reqPage(pid, vpn);
+		if(e != null && write && isCopyOnWrite(vpn))
+			e = reqWritablePage(vpn);
+		if(e == null || (write && e.readOnly))return null;
+		return e;
+	}
+
+	/**
+	 * Give a page a frame and an entry. The frame comes back pinned and empty;
+	 * the entry is not valid until the caller has filled the frame.
+	 */
 	@Override
 	protected int allocPage(int vpn) {
-		Lib.assertTrue(tableLock.isHeldByCurrentThread());
-		int ppn = -1;
-		int pn = Machine.processor().getNumPhysPages();
-		
-		for(int i=0;i<pn;i++){
-//			UserKernel.phyTableLock.acquire();
-			if(UserKernel.phyTable[i] == null){
-				UserKernel.phyTable[i]=new VMPage(this.pid, vpn);
-				ppn=i;
-//				UserKernel.phyTableLock.release();
-				break;
-			}
-//			UserKernel.phyTableLock.release();
-		}
-		if(ppn<0){
-			ppn = VMKernel.getKernel().swapOut();
-//			UserKernel.phyTableLock.acquire();
-			UserKernel.phyTable[ppn]=new VMPage(this.pid, vpn);
-//			UserKernel.phyTableLock.release();	
-		}
-		VMKernel.getKernel().ipTable.put(UserKernel.phyTable[ppn], new TranslationEntry(vpn, ppn, true, false, false, false));
+		VMKernel kernel = VMKernel.getKernel();
+		Lib.assertTrue(kernel.frameLock.isHeldByCurrentThread());
+		int ppn = kernel.allocFrame(this.pid, vpn);
+		TranslationEntry e = new TranslationEntry(vpn, ppn, false, false, false, false);
+		e.asid = this.pid;
+		pageTable[vpn] = e;
 		return ppn;
 	}
 	
 	public TranslationEntry getPage(int pid, int vpn){
-		return getPage(new VMPage(pid,vpn));
+		TranslationEntry ret =VMKernel.getKernel().ipTable.get(pid, vpn);
+		Lib.assertTrue(ret==null||ret.valid);
+		return ret;
 	}
 
 	public TranslationEntry getPage(VMPage page) {
-		//Lib.assertTrue(tableLock.isHeldByCurrentThread());
-		TranslationEntry ret =VMKernel.getKernel().ipTable.get(page);
-		Lib.assertTrue(ret==null||ret.valid);
-		return ret;
+		return getPage(page.pid, page.vpn);
 	}
 	
 	public TranslationEntry reqPage(VMPage page){
-		Lib.assertTrue(tableLock.isHeldByCurrentThread());
-		TranslationEntry ret = VMKernel.getKernel().ipTable.get(page);
-		if(ret != null) return ret;
-		int vpn = page.vpn;
-		allocPage(vpn);
-		if(VMKernel.getKernel().swapIn(page))return VMKernel.getKernel().ipTable.get(page);
-		ret = VMKernel.getKernel().ipTable.get(page);
-		
-		if (numPages - stackPages - argPages > vpn){
-			// load sections
-			for (int s = 0; s < coff.getNumSections(); s++) {
-				CoffSection section = coff.getSection(s);
-
-				Lib.debug(dbgVM, "\t(forced) initializing " + pid +":" + section.getName()
-						+ " section (" + section.getLength() + " pages)");
-				int firstVpn = section.getFirstVPN(); 
-				if (firstVpn <= vpn && vpn < firstVpn + section.getLength()) {
-					section.loadPage(vpn - firstVpn, ret.ppn);
-					ret.readOnly = section.isReadOnly();
-					ret.valid = true;
-					break;
-				}
-			}
+		return reqPage(page.pid, page.vpn);
+	}
+
+	/**
+	 * Return the entry of one of this process's pages, faulting it in if it
+	 * is not in memory.
+	 * 
+	 * @return the entry, or <tt>null</tt> if the page is outside the address
+	 *         space and no file is mapped there.
+	 */
+	public TranslationEntry reqPage(int pid, int vpn) {
+		VMKernel kernel = VMKernel.getKernel();
+		Lib.assertTrue(kernel.frameLock.isHeldByCurrentThread());
+		Lib.assertTrue(pid == this.pid);
+		if(vpn < 0) return null;
+		if(vpn >= numPages) return reqMappedPage(vpn);
+		TranslationEntry ret = pageTable[vpn];
+		// an entry whose frame was taken by swapOut() stays here, invalid
+		if(ret != null && ret.valid){
+			kernel.pageUsed(ret.ppn);
+			return ret;
 		}
+		if(sections[vpn] != null && sections[vpn].isReadOnly())
+			return reqSharedPage(vpn);
+		// wait for a write of this page to swap to finish
+		while(kernel.isInTransit(pid, vpn))
+			kernel.pagingDone.sleep();
+		// a data page we never wrote to swap is the same as the executable's;
+		// sharedOwner is the file we were loaded from, never a later one
+		if(isCopyOnWrite(vpn) && kernel.swap.getSlot(PageMap.key(pid, vpn)) < 0)
+			return reqSharedPage(vpn);
+		kernel.numPageFaults++;
+		int ppn = allocPage(vpn);
+		ret = pageTable[vpn];
+		boolean fromSwap = kernel.swapIn(pid, vpn, ppn);
+		if(!fromSwap)
+			loadPage(vpn, ppn);
 		
+		Machine.processor().invalidateDecodeCache(ppn);
+		ret.valid = true;
+		kernel.ipTable.put(PageMap.key(pid, vpn), ret);
+		kernel.replacementPolicy.pageLoaded(ppn);
+		// the second fault in a row on consecutive pages starts reading ahead
+		boolean sequential = vpn == lastFault + 1;
+		lastFault = vpn;
+		if(fromSwap && sequential)
+			readAhead(vpn);
+		kernel.unpin(ppn);
 		return ret;
 	}
 
-	public TranslationEntry reqPage(int pid, int vpn) {
-		return reqPage(new VMPage(pid,vpn));
+	/**
+	 * Bring in up to <tt>VMKernel.readAhead</tt> pages following a faulting
+	 * page, as long as they are in swap and not in memory. Only free or
+	 * evictable frames are used, so this never waits for a frame.
+	 */
+	private void readAhead(int vpn) {
+		VMKernel kernel = VMKernel.getKernel();
+		int window = kernel.getReadAhead();
+		int[] ppns = new int[window];
+		int n = 0;
+		for (; n < window; n++) {
+			int next = vpn + 1 + n;
+			if (next >= numPages || (pageTable[next] != null && pageTable[next].valid)
+					|| kernel.isInTransit(pid, next)
+					|| kernel.swap.getSlot(PageMap.key(pid, next)) < 0)
+				break;
+			ppns[n] = kernel.tryAllocFrame(pid, next);
+			if (ppns[n] < 0)
+				break;
+			TranslationEntry e = new TranslationEntry(next, ppns[n], false, false, false, false);
+			e.asid = pid;
+			pageTable[next] = e;
+		}
+		if (n == 0)
+			return;
+
+		kernel.prefetch(pid, vpn + 1, ppns, n);
+		for (int i = 0; i < n; i++) {
+			TranslationEntry e = pageTable[vpn + 1 + i];
+			Machine.processor().invalidateDecodeCache(ppns[i]);
+			e.valid = true;
+			kernel.ipTable.put(PageMap.key(pid, e.vpn), e);
+			kernel.replacementPolicy.pageLoaded(ppns[i]);
+			kernel.unpin(ppns[i]);
+		}
 	}
 
-	public void freePage(int pid, int vpn){
-		freePage(new VMPage(pid,vpn));
+	/**
+	 * Map a page of a read-only or initialized section to its shared page,
+	 * reading the page from the executable if no process has it in memory.
+	 */
+	private TranslationEntry reqSharedPage(int vpn) {
+		VMKernel kernel = VMKernel.getKernel();
+		VMPage page = kernel.getSharedPage(sharedOwner, vpn);
+		TranslationEntry e = page.entry;
+		if(pageTable[vpn] != e){
+			page.refCount++;
+			pageTable[vpn] = e;
+		}
+		// another process may be reading the page in
+		while(kernel.isInTransit(sharedOwner, vpn))
+			kernel.pagingDone.sleep();
+		if(e.valid){
+			kernel.numSharedHits++;
+			return e;
+		}
+		kernel.numPageFaults++;
+		kernel.markInTransit(sharedOwner, vpn);
+		int ppn = kernel.allocFrame(page);
+		CoffSection section = sections[vpn];
+		kernel.frameLock.release();
+		section.loadPage(vpn - section.getFirstVPN(), ppn);
+		kernel.frameLock.acquire();
+		
+		e.ppn = ppn;
+		e.valid = true;
+		kernel.ipTable.put(page.key(), e);
+		kernel.replacementPolicy.pageLoaded(ppn);
+		kernel.unpin(ppn);
+		kernel.clearInTransit(sharedOwner, vpn);
+		return e;
+	}
+
+	/**
+	 * Test whether a page belongs to an initialized data section, whose pages
+	 * are shared until the process writes to them. They are shared only with
+	 * processes loaded from the same contents of the executable: a file that
+	 * changes gets a new owner, see <tt>VMKernel.forgetExecutable()</tt>.
+	 */
+	private boolean isCopyOnWrite(int vpn) {
+		if (vpn < 0 || vpn >= numPages || sections[vpn] == null)
+			return false;
+		return !sections[vpn].isReadOnly() && sections[vpn].isInitialzed();
 	}
 
-	public void freePage(VMPage p) {
-		Lib.assertTrue(tableLock.isHeldByCurrentThread());
-		TranslationEntry e = getPage(p);
-		UserKernel.phyTableLock.acquire();
+	/**
+	 * Return the entry of a page of an initialized data section that this
+	 * process may write to, copying the shared page into a private frame if
+	 * the page is still shared. Our TLB entries for the shared page are
+	 * dropped.
+	 */
+	private TranslationEntry reqWritablePage(int vpn) {
+		VMKernel kernel = VMKernel.getKernel();
+		TranslationEntry e = reqPage(pid, vpn);
+		if(e.asid == pid)
+			return e;
+
+		Processor p = Machine.processor();
+		for(int i=0;i<p.getTLBSize();i++){
+			TranslationEntry t = p.readTLBEntry(i);
+			if(t.valid && t.asid == pid && t.vpn == vpn)
+				kernel.putTLBEntry(i, nullEntry);
+		}
+		VMPage page = kernel.getSharedPage(sharedOwner, vpn);
+		page.refCount--;
+		kernel.numCopyOnWrites++;
+		int ppn = allocPage(vpn);
+		e = pageTable[vpn];
+		// the shared page may have been evicted while we waited for a frame
+		if(page.entry.valid){
+			byte[] memory = p.getMemory();
+			System.arraycopy(memory, Processor.makeAddress(page.entry.ppn, 0),
+					memory, Processor.makeAddress(ppn, 0), pageSize);
+		}
+		else
+			loadPage(vpn, ppn);
+
+		p.invalidateDecodeCache(ppn);
+		e.valid = true;
+		kernel.ipTable.put(PageMap.key(pid, vpn), e);
+		kernel.replacementPolicy.pageLoaded(ppn);
+		kernel.unpin(ppn);
+		return e;
+	}
+
+	/**
+	 * Fill a frame with a writable page that is not in swap. A page of an
+	 * initialized COFF section is read from the executable, without
+	 * <tt>frameLock</tt> held. Every other page (uninitialized data, stack and
+	 * arguments) is a demand-zero page: it is zeroed here and has no backing
+	 * store until it is dirtied, so while it stays clean <tt>swapOut()</tt>
+	 * just drops it.
+	 */
+	private void loadPage(int vpn, int ppn) {
+		CoffSection section = sections[vpn];
+		if (section != null && section.isInitialzed()) {
+			Lib.debug(dbgVM, "\t(forced) initializing " + pid +":" + section.getName()
+					+ " section page " + (vpn - section.getFirstVPN()));
+			Lock frameLock = VMKernel.getKernel().frameLock;
+			frameLock.release();
+			section.loadPage(vpn - section.getFirstVPN(), ppn);
+			frameLock.acquire();
+			return;
+		}
+		Lib.debug(dbgVM, "\tzero-filling " + pid + ":" + vpn);
+		byte[] memory = Machine.processor().getMemory();
+		int paddr = Processor.makeAddress(ppn, 0);
+		Arrays.fill(memory, paddr, paddr + pageSize, (byte) 0);
+		VMKernel.getKernel().numZeroFills++;
+	}
+
+	public void freePage(VMPage p){
+		freePage(p.pid, p.vpn);
+	}
+
+	public void freePage(int pid, int vpn) {
+		Lib.assertTrue(VMKernel.getKernel().frameLock.isHeldByCurrentThread());
+		TranslationEntry e = getPage(pid, vpn);
 		UserKernel.phyTable[e.ppn]=null;
-		UserKernel.phyTableLock.release();
-		VMKernel.getKernel().ipTable.remove(p);
+		VMKernel.getKernel().frameFreed(e.ppn);
+		VMKernel.getKernel().ipTable.remove(PageMap.key(pid, vpn));
+		pageTable[vpn] = null;
 		e.ppn = -1;
 		e.valid=false;
 	}
 
+	/**
+	 * Drop the cached pages of a file that is about to change, in case it is
+	 * an executable, so that no process runs a mix of its old and new
+	 * contents.
+	 */
+	protected void fileChanged(String name) {
+		VMKernel kernel = VMKernel.getKernel();
+		kernel.frameLock.acquire();
+		kernel.forgetExecutable(name);
+		kernel.frameLock.release();
+	}
+
+	/**
+	 * Take a sample of the used bits of this process's own pages, clearing
+	 * them, and return the working set: the number of pages used in the last
+	 * <i>window</i> samples. Called with <tt>frameLock</tt> held, after the
+	 * TLB's used bits have been merged into the entries.
+	 * 
+	 * @param sample
+	 *            the number of this sample, counting from 1.
+	 */
+	int sampleWorkingSet(int sample, int window) {
+		if (lastUsed == null)
+			lastUsed = new int[numPages];
+		workingSet = 0;
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			TranslationEntry e = pageTable[vpn];
+			if (e != null && e.valid && e.asid == pid && e.used) {
+				e.used = false;
+				lastUsed[vpn] = sample;
+			}
+			if (lastUsed[vpn] > 0 && sample - lastUsed[vpn] < window)
+				workingSet++;
+		}
+		return workingSet;
+	}
+
+	/**
+	 * Evict every page this process has in memory, except shared pages and
+	 * pages that are pinned or being written out. Called with
+	 * <tt>frameLock</tt> held, which is released while pages are written.
+	 * 
+	 * @return the number of pages evicted.
+	 */
+	int evictAll() {
+		VMKernel kernel = VMKernel.getKernel();
+		int evicted = 0;
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			TranslationEntry e = pageTable[vpn];
+			if (e != null && e.valid && e.asid == pid && kernel.reclaim(e.ppn))
+				evicted++;
+		}
+		for (int i = 0; i < maps.size(); i++) {
+			for (TranslationEntry e : maps.get(i).entries) {
+				if (e != null && e.valid && kernel.reclaim(e.ppn))
+					evicted++;
+			}
+		}
+		if (lastUsed != null)
+			Arrays.fill(lastUsed, 0);
+		return evicted;
+	}
+
+	/**
+	 * Return the number of pages in this process's address space.
+	 */
+	int getNumPages(){
+		return numPages;
+	}
+
+	/** The section each page belongs to, or <tt>null</tt>. */
+	private CoffSection[] sections;
+	/** The owner of our executable's pages in the shared page cache. */
+	private int sharedOwner;
+	/** The last page that faulted, for detecting sequential faults. */
+	private int lastFault = -2;
+	/** The pages we had in the TLB when switched out, if ASIDs are off. */
+	private int[] savedTLB = null;
+	/** The thread running this process, once it has run. */
+	KThread thread = null;
+	/** Set while the load controller has this process suspended. */
+	boolean suspended = false;
+	/** The working set found by the last sample. */
+	int workingSet = 0;
+	/** The sample in which each page was last seen used, or 0. */
+	private int[] lastUsed = null;
+	/** The files mapped by <tt>mmap()</tt>. */
+	private ArrayList<MappedFile> maps = new ArrayList<MappedFile>();
+
+	private static final int syscallRead = 6, syscallWrite = 7,
+			syscallClose = 8, syscallMmap = 10;
+
 	private static final int pageSize = Processor.pageSize;
 	private static final char dbgProcess = 'a';
 	private static final char dbgVM = 'v';
-	public static Lock tableLock = new Lock();
-	private Integer [] myTLB = new Integer[Machine.processor().getTLBSize()];
 	protected final int argPages = Config.getInteger("Processor.numArgPages", 1);
+	/** The most pages <tt>transferFile()</tt> pins at once. */
+	private static final int maxTransferPages = 4;
+
 	public static TranslationEntry nullEntry = new TranslationEntry(-1,-1,false,false,false,false);
 }
@@ -0,0 +1,39 @@
+/* mmcat.c
+ *    Like cat, but maps the file with mmap() and writes it out with one
+ *    write(), instead of copying it through a buffer with read().
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+/* well past the program, its stack and its arguments */
+#define MapAddress	((char *) 0x10000000)
+
+int main(int argc, char** argv)
+{
+  int fd, length;
+
+  if (argc!=2) {
+    printf("Usage: mmcat <file>\n");
+    return 1;
+  }
+
+  fd = open(argv[1]);
+  if (fd==-1) {
+    printf("Unable to open %s\n", argv[1]);
+    return 1;
+  }
+
+  length = mmap(fd, MapAddress);
+  if (length==-1) {
+    printf("Unable to map %s\n", argv[1]);
+    return 1;
+  }
+
+  write(1, MapAddress, length);
+
+  close(fd);
+
+  return 0;
+}
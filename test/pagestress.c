@@ -0,0 +1,72 @@
+/* pagestress.c
+ *    Paging stress test: runs several copies of itself at once, each
+ *    sweeping an array larger than physical memory.
+ *
+ *    "pagestress [n]" starts n children (default 4) and joins them; a child
+ *    is started as "pagestress child". Compare the simulated ticks printed
+ *    at halt with different VM kernels.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define Pages	24		/* pages of data per child */
+#define Passes	4		/* sweeps over the data */
+#define Words	(Pages * 1024 / sizeof(int))
+#define MaxChildren	16
+
+int data[Words];
+
+int
+child()
+{
+    int i, pass;
+
+    for (i = 0; i < Words; i++)
+	data[i] = i;
+
+    for (pass = 0; pass < Passes; pass++)
+	for (i = 0; i < Words; i++) {
+	    if (data[i] != i + pass)
+		return 1;
+	    data[i]++;
+	}
+
+    return 0;
+}
+
+int
+main(int argc, char *argv[])
+{
+    char *args[2];
+    int pids[MaxChildren];
+    int i, n, status, failed = 0;
+
+    if (argc > 1 && strcmp(argv[1], "child") == 0)
+	return child();
+
+    n = argc > 1 ? atoi(argv[1]) : 4;
+    if (n > MaxChildren)
+	n = MaxChildren;
+
+    args[0] = "pagestress.coff";
+    args[1] = "child";
+    for (i = 0; i < n; i++) {
+	pids[i] = exec("pagestress.coff", 2, args);
+	if (pids[i] < 0) {
+	    printf("exec %d failed\n", i);
+	    return 1;
+	}
+    }
+
+    for (i = 0; i < n; i++) {
+	if (join(pids[i], &status) != 1 || status != 0) {
+	    printf("child %d failed\n", i);
+	    failed++;
+	}
+    }
+
+    printf("pagestress: %d of %d children passed\n", n - failed, n);
+    return failed;
+}